@@ -11,6 +11,11 @@ public abstract class AbstractHandler implements Handler {
 		// Ignore
 	}
 
+	@Override
+	public void cachedArticle(String prefix, String title, String[] links, String tokens) {
+		// Ignore
+	}
+
 	@Override
 	public void redirect(String prefix, String title, String redirect, String anchor) {
 		// Ignore
@@ -1,34 +1,43 @@
 package com.github.kno10.wikipediaentities;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.nio.file.FileSystems;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.CollectorManager;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.PhraseQuery;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
 
+import com.github.kno10.wikipediaentities.util.Autotuner;
 import com.github.kno10.wikipediaentities.util.CounterSet;
 import com.github.kno10.wikipediaentities.util.CounterSet.Entry;
 import com.github.kno10.wikipediaentities.util.Progress;
 import com.github.kno10.wikipediaentities.util.Unique;
 import com.github.kno10.wikipediaentities.util.Util;
 
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
@@ -43,26 +52,65 @@ public class AnalyzeLinks {
 
   Progress prog = new Progress("Computing support");
 
-  BlockingQueue<Candidate> proqueue = new ArrayBlockingQueue<>(1000);
+  final BlockingQueue<Candidate> proqueue = new ArrayBlockingQueue<>(1000);
 
-  BlockingQueue<Candidate> outqueue = new ArrayBlockingQueue<>(1000 + 1);
+  final BlockingQueue<Candidate> outqueue = new ArrayBlockingQueue<>(1000 + 1);
+
+  /** Worker pool */
+  Autotuner.Pool workers;
 
   boolean shutdown = false;
 
   /** Lucene index searcher */
   IndexSearcher searcher;
 
-  private void run() throws IOException {
-    int par = Math.min(Integer.valueOf(Config.get("parallelism")), Runtime.getRuntime().availableProcessors());
+  /** Threads to search the shards concurrently, may be {@code null} */
+  ExecutorService shardpool;
+
+  /** Shingles indexed for faster phrase search, may be {@code null} */
+  ShingleVocabulary shingles;
+
+  /** Incremental update: phrases to analyze again, or {@code null} */
+  ObjectOpenHashSet<String> touched;
+
+  /** Incremental update: previous results */
+  Object2ObjectOpenHashMap<String, String> previous;
+
+  /** Resolved link targets of each document, may be {@code null} */
+  EntityColumn column;
+
+  /** Names of the entities, by entity number */
+  String[] entityNames;
+
+  private void run(boolean update) throws IOException {
+    final int cpus = Runtime.getRuntime().availableProcessors();
+    int par = Math.min(Integer.valueOf(Config.get("parallelism")), cpus);
     if(par < 1) {
       throw new Error("At least 1 consumer must be allowed!");
     }
+    // Adjust the number of active threads, within [1;max]:
+    final int tune = Config.getInt("autotune.interval", 0);
+    final int parmax = tune > 0 ? Math.max(par, Config.getInt("parallelism.max", par)) : par;
+    workers = new Autotuner.Pool("Analyzing", 1, parmax, par, new Autotuner.Gauge() {
+      @Override
+      public double get() {
+        return proqueue.size() / 1000.;
+      }
+    }, new Autotuner.Gauge() {
+      @Override
+      public double get() {
+        return outqueue.size() / 1001.;
+      }
+    });
 
     // String unification, for performance.
     Unique<String> unique = new Unique<>(50_000_000);
     // Load Wikidata information:
-    Map<String, String> datamap = loadWikidata(unique, Config.get("wikidata.output"));
-    System.out.format("Read %d wikidata maps.\n", datamap.size());
+    ArrayList<String> names = new ArrayList<>();
+    Object2IntOpenHashMap<String> datamap = loadWikidata(unique, Config.get("wikidata.output"), names);
+    entityNames = names.toArray(new String[names.size()]);
+    names = null; // Free.
+    System.out.format("Read %d wikidata maps of %d entities.\n", datamap.size(), entityNames.length);
     // Load redirects
     Reference2ReferenceOpenHashMap<String, String> redmap = loadRedirects(unique, Config.get("redirects.output"));
     System.out.format("Read %d redirects.\n", redmap.size());
@@ -74,19 +122,50 @@ public class AnalyzeLinks {
     String nam = Config.get("linktext.output");
     String dir = Config.get("indexer.dir");
     String out = Config.get("entities.output");
-    FSDirectory ldir = FSDirectory.open(FileSystems.getDefault().getPath(dir));
-    IndexReader reader = DirectoryReader.open(ldir);
-    searcher = new IndexSearcher(reader);
+    IndexReader reader = LuceneWikipediaIndexer.openReader(dir, Config.getBoolean("indexer.shards", false));
+    final int sthreads = Config.getInt("analyze.shard.threads", 0);
+    if(sthreads > 0 && reader.getContext().children().size() > 1) {
+      shardpool = Executors.newFixedThreadPool(sthreads);
+      searcher = new ShardSearcher(reader, shardpool);
+    }
+    else
+      searcher = new IndexSearcher(reader);
+    searcher.setSimilarity(new ConstantSimilarity()); // We do not rank.
+    String sfile = Config.get("indexer.shingles", "");
+    if(!sfile.isEmpty()) {
+      if(MultiFields.getMergedFieldInfos(reader).fieldInfo(ShingleVocabulary.LUCENE_FIELD_SHINGLES) != null)
+        shingles = new ShingleVocabulary(sfile);
+      else
+        System.err.println("The index has no shingles, using phrase queries only.");
+    }
+    String cfile = Config.get("analyze.column", "");
+    if(!cfile.isEmpty() && !update) // Not worth it for a few phrases.
+      buildColumn(reader, datamap, new File(cfile));
+    if(update) {
+      // Must be loaded before the output is overwritten.
+      touched = loadPhrases(Config.get("update.phrases"));
+      previous = loadPrevious(out);
+      System.out.format("Analyzing %d changed phrases, keeping %d previous results.\n", touched.size(), previous.size());
+    }
 
     ArrayList<Thread> threads = new ArrayList<>();
     threads.add(new OutputThread(out));
-    for(int i = 0; i < par; i++)
-      threads.add(new WorkerThread("Worker-" + i, datamap));
+    for(int i = 0; i < parmax; i++)
+      threads.add(new WorkerThread(i, datamap));
 
     // Start all:
     for(Thread th : threads)
       th.start();
+    Autotuner tuner = null;
+    if(parmax > par) {
+      tuner = new Autotuner(tune * 1000L, cpus);
+      tuner.add(workers);
+      tuner.start();
+    }
     readall(nam);
+    workers.finish(); // Let parked workers finish, too.
+    if(tuner != null)
+      tuner.interrupt();
     // Wait for all:
     for(Thread th : threads) {
       try {
@@ -100,19 +179,121 @@ public class AnalyzeLinks {
         e.printStackTrace();
       }
     }
+    if(shardpool != null)
+      shardpool.shutdown();
+    if(column != null)
+      column.close();
+  }
+
+  /**
+   * Resolve the link targets of all documents once, into a column of entity
+   * numbers.
+   *
+   * @param reader Index reader
+   * @param datamap Map of link targets to entities
+   * @param file File for the column
+   * @throws IOException on errors
+   */
+  private void buildColumn(IndexReader reader, final Object2IntOpenHashMap<String> datamap, File file) throws IOException {
+    System.err.println("Resolving the links of all documents.");
+    final long start = System.nanoTime();
+    column = new EntityColumn(reader, new EntityColumn.Resolver() {
+      @Override
+      public int resolve(String target) {
+        return datamap.getInt(target);
+      }
+    }, file);
+    System.err.format("Resolved %d links in %.1f s.\n", column.size(), (System.nanoTime() - start) * 1e-9);
+  }
+
+  /** Collect the matching documents of all shards */
+  static final CollectorManager<MatchCollector, IntArrayList> MATCHES = new CollectorManager<MatchCollector, IntArrayList>() {
+    @Override
+    public MatchCollector newCollector() {
+      return new MatchCollector();
+    }
+
+    @Override
+    public IntArrayList reduce(Collection<MatchCollector> collectors) {
+      IntArrayList all = new IntArrayList();
+      for(MatchCollector c : collectors)
+        all.addAll(c.docs);
+      return all;
+    }
+  };
+
+  /**
+   * Collect the (global) document numbers of the matches in one shard.
+   *
+   * @author Erich Schubert
+   */
+  private static class MatchCollector extends SimpleCollector {
+    /** Matching documents */
+    IntArrayList docs = new IntArrayList();
+
+    /** Base of the current segment */
+    int base;
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+      base = context.docBase;
+    }
+
+    @Override
+    public void collect(int doc) {
+      docs.add(base + doc);
+    }
+
+    @Override
+    public boolean needsScores() {
+      return false;
+    }
+  }
+
+  /**
+   * Searcher that searches the shards of an index concurrently, one task per
+   * shard (rather than per segment).
+   *
+   * @author Erich Schubert
+   */
+  private static class ShardSearcher extends IndexSearcher {
+    /**
+     * Constructor.
+     *
+     * @param reader Reader over all shards
+     * @param executor Executor
+     */
+    public ShardSearcher(IndexReader reader, ExecutorService executor) {
+      super(reader, executor);
+    }
+
+    @Override
+    protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+      // The segments of a shard are consecutive, and share the parent:
+      List<LeafSlice> slices = new ArrayList<>();
+      for(int i = 0, j; i < leaves.size(); i = j) {
+        final IndexReaderContext shard = leaves.get(i).parent;
+        for(j = i + 1; j < leaves.size() && leaves.get(j).parent == shard;)
+          ++j;
+        slices.add(new LeafSlice(leaves.subList(i, j).toArray(new LeafReaderContext[j - i])));
+      }
+      return slices.toArray(new LeafSlice[slices.size()]);
+    }
   }
 
   /**
    * Load wikidata information, i.e. a map WikiDataID to language versions, and
-   * return a map language version to WikiDataID.
+   * return a map language version to entity number.
    *
    * @param unique String unifier
    * @param fnam File name
-   * @return Map language version to wiki data id.
+   * @param names Output: entity names (WikiDataID and title), by number
+   * @return Map language version to entity number, -1 if not found.
    * @throws IOException
    */
-  private Map<String, String> loadWikidata(Unique<String> unique, String fnam) throws IOException {
-    Map<String, String> m = new Object2ObjectOpenHashMap<>(30_000_000);
+  private Object2IntOpenHashMap<String> loadWikidata(Unique<String> unique, String fnam, List<String> names) throws IOException {
+    Object2IntOpenHashMap<String> m = new Object2IntOpenHashMap<>(30_000_000);
+    m.defaultReturnValue(-1);
     try (BufferedReader r = new BufferedReader(//
     new InputStreamReader(Util.openInput(fnam)))) {
       String line = r.readLine();
@@ -126,25 +307,62 @@ public class AnalyzeLinks {
           if(title == null || title.length() == 0)
             continue;
         }
-        String nam = null;
+        int id = -1;
         for(int i = 1; i < cols.length; i++) {
           if(cols[i] == null || cols[i].length() == 0) {
             continue;
           }
-          if(nam == null) {
+          if(id < 0) {
             buf.setLength(0);
-            nam = unique.addOrGet(buf.append(cols[0]).append(':').append(cols[i].replace(':', ' ')).toString());
+            id = names.size();
+            names.add(buf.append(cols[0]).append(':').append(cols[i].replace(':', ' ')).toString());
           }
           buf.setLength(0);
           buf.append(header[i]).append(':').append(cols[i]);
-          String prev = m.put(unique.addOrGet(buf.toString()), nam);
-          assert (prev == null);
+          int prev = m.put(unique.addOrGet(buf.toString()), id);
+          assert (prev < 0);
         }
       }
     }
     return m;
   }
 
+  /**
+   * Load the phrases that need to be analyzed again.
+   *
+   * @param fnam File name
+   * @return Set of phrases
+   * @throws IOException
+   */
+  private ObjectOpenHashSet<String> loadPhrases(String fnam) throws IOException {
+    ObjectOpenHashSet<String> s = new ObjectOpenHashSet<>();
+    try (BufferedReader r = new BufferedReader(//
+    new InputStreamReader(Util.openInput(fnam)))) {
+      String line = null;
+      while((line = r.readLine()) != null)
+        s.add(line);
+    }
+    return s;
+  }
+
+  /**
+   * Load the previous results, indexed by phrase.
+   *
+   * @param fnam File name
+   * @return Map from phrase to output line
+   * @throws IOException
+   */
+  private Object2ObjectOpenHashMap<String, String> loadPrevious(String fnam) throws IOException {
+    Object2ObjectOpenHashMap<String, String> m = new Object2ObjectOpenHashMap<>();
+    try (BufferedReader r = new BufferedReader(//
+    new InputStreamReader(Util.openInput(fnam)))) {
+      String line = null;
+      while((line = r.readLine()) != null)
+        m.put(line.substring(0, line.indexOf('\t')), line);
+    }
+    return m;
+  }
+
   /**
    * Load the redirects data. Note: we perform string unification, and use a
    * Reference-based HashMap for performance reasons.
@@ -175,7 +393,7 @@ public class AnalyzeLinks {
    * @param datamap Wikidata map (will be modified)
    * @param redmap Redirection map (read-only)
    */
-  private void computeClosure(Map<String, String> datamap, Reference2ReferenceOpenHashMap<String, String> redmap) {
+  private void computeClosure(Object2IntOpenHashMap<String> datamap, Reference2ReferenceOpenHashMap<String, String> redmap) {
     System.err.println("Computing transitive closure of redirects.");
     ObjectOpenHashSet<String> seen = new ObjectOpenHashSet<>();
     // Iterate using a copy to avoid concurrent modification
@@ -187,10 +405,10 @@ public class AnalyzeLinks {
       Reference2ReferenceOpenHashMap.Entry<String, String> ent = it.next();
       String key = ent.getKey(), targ = ent.getValue();
       assert (targ != null);
-      String next = datamap.get(key);
-      if(next != null) {
+      final int id = datamap.getInt(key);
+      if(id >= 0) {
         do {
-          if(datamap.put(targ, next) == null) {
+          if(datamap.put(targ, id) < 0) {
             // System.err.format("Warning: WikiData references a redirect: %s >
             // %s > %s\n", next, key, targ);
           }
@@ -202,12 +420,12 @@ public class AnalyzeLinks {
       seen.add(key);
       seen.add(targ);
       while(true) {
-        next = datamap.get(targ);
-        if(next != null) {
-          datamap.put(key, next);
+        final int tid = datamap.getInt(targ);
+        if(tid >= 0) {
+          datamap.put(key, tid);
           break;
         }
-        next = redmap.get(targ);
+        String next = redmap.get(targ);
         if(next == null) {
           break;
         }
@@ -244,19 +462,31 @@ public class AnalyzeLinks {
   Object monitor = new Object();
 
   private class WorkerThread extends Thread {
-    Object2IntOpenHashMap<String> counters = new Object2IntOpenHashMap<>();
+    /**
+     * Counters by entity number: search count in the lower, exact count in
+     * the upper half
+     */
+    Int2LongOpenHashMap counters = new Int2LongOpenHashMap();
 
     StringBuilder buf = new StringBuilder();
 
-    Map<String, String> datamap;
+    /** Map of link targets to entity numbers */
+    Object2IntOpenHashMap<String> datamap;
+
+    /** Entities already counted in the current document (without column) */
+    IntOpenHashSet dups = new IntOpenHashSet(), dupsExact = new IntOpenHashSet();
 
-    ObjectOpenHashSet<String> dups = new ObjectOpenHashSet<>(),
-        dupsExact = new ObjectOpenHashSet<>();
+    static final long EXACT = 1L << 32;
 
-    static final int EXACT = 0x1_0000;
+    /** Collector for the matching documents */
+    LinkCounter collector = new LinkCounter();
 
-    public WorkerThread(String name, Map<String, String> datamap) {
-      super(name);
+    /** Worker number */
+    int num;
+
+    public WorkerThread(int num, Object2IntOpenHashMap<String> datamap) {
+      super("Worker-" + num);
+      this.num = num;
       this.datamap = datamap;
     }
 
@@ -264,10 +494,13 @@ public class AnalyzeLinks {
     public void run() {
       while(!proqueue.isEmpty() || !shutdown) {
         try {
+          workers.await(num);
           Candidate a = proqueue.poll(100, TimeUnit.MILLISECONDS);
           if(a == null)
             continue;
+          final long start = System.nanoTime();
           analyze(a);
+          workers.busy(System.nanoTime() - start);
           prog.incrementAndLog();
         }
         catch(InterruptedException e) {
@@ -281,53 +514,39 @@ public class AnalyzeLinks {
     }
 
     private void analyze(Candidate cand) throws IOException {
-      PhraseQuery.Builder pq = new PhraseQuery.Builder();
-      for(String t : cand.query.split(" "))
-        pq.add(new Term(LuceneWikipediaIndexer.LUCENE_FIELD_TEXT, t));
+      final String[] tokens = cand.query.split(" ");
+      Query q = shingles != null ? shingles.query(tokens) : null;
+      if(q == null) { // Not covered by shingles.
+        PhraseQuery.Builder pq = new PhraseQuery.Builder();
+        for(String t : tokens)
+          pq.add(new Term(LuceneWikipediaIndexer.LUCENE_FIELD_TEXT, t));
+        q = pq.build();
+      }
       counters.clear();
-      // Careful: max count must be less than 64k, because we use short counts!
-      TopDocs res = searcher.search(pq.build(), 0xFFFF);
-      ScoreDoc[] docs = res.scoreDocs;
-      if(docs.length < MINIMUM_MENTIONS) {
+      collector.start(cand.query);
+      if(shardpool == null)
+        searcher.search(q, collector);
+      else // Find the matches concurrently, then count their links.
+        for(IntIterator it = searcher.search(q, MATCHES).iterator(); it.hasNext();)
+          collector.hit(it.nextInt());
+      final int hits = collector.hits;
+      if(hits < MINIMUM_MENTIONS) {
         cand.query = null; // Flag as dead.
-        return; // Too rare.
-      }
-      int minsupp = Math.max(MINIMUM_MENTIONS, docs.length / 10);
-      int weight = 0;
-      for(int i = 0; i < docs.length; ++i) {
-        Document d = searcher.doc(docs[i].doc);
-        String[] lis = d.get(LuceneWikipediaIndexer.LUCENE_FIELD_LINKS).split("\t");
-        if(lis.length == 0) {
-          // String dtitle = d.get(LuceneWikipediaIndexer.LUCENE_FIELD_TITLE);
-          // System.err.format("No links for %s.\n", dtitle);
-          continue;
-        }
-        dups.clear();
-        dupsExact.clear();
-        // Even positions are link targets:
-        // Beware: Java "split" loses trailing separators!
-        boolean used = false;
-        for(int j = 0; j < lis.length; j += 2) {
-          final String targ = datamap.get(lis[j]);
-          if(targ != null) {
-            if(dups.add(targ)) {
-              counters.addTo(targ, 1);
-              used = true;
-            }
-            if(j + 1 < lis.length && lis[j + 1].equalsIgnoreCase(cand.query) && dupsExact.add(targ))
-              counters.addTo(targ, EXACT);
-          }
+        // Wake up writer thread, if waiting.
+        synchronized(monitor) {
+          monitor.notifyAll();
         }
-        if(used)
-          weight++;
+        return; // Too rare.
       }
+      int minsupp = Math.max(MINIMUM_MENTIONS, hits / 10);
+      final int weight = collector.weight;
       boolean output = false;
       if(counters.size() > 0) {
         buf.setLength(0); // clear
         buf.append(cand.query);
-        buf.append('\t').append(res.totalHits);
+        buf.append('\t').append(hits);
         buf.append('\t').append(weight);
-        List<Entry<String>> sorted = CounterSet.descending(counters);
+        List<Entry<String>> sorted = CounterSet.descending(counters, entityNames);
         int max = weight;
         // int max = Math.max(docs.length, sorted.get(0).getCombinedCount());
         final double norm = Math.log1p(.1 * max);
@@ -359,6 +578,186 @@ public class AnalyzeLinks {
         monitor.notifyAll();
       }
     }
+
+    /**
+     * Count the targets of the links of a matching document, using the
+     * resolved links.
+     *
+     * @param doc Document number
+     * @param query Query phrase
+     * @param qhash Label hash of the query
+     * @return {@code true} if any link had a known target
+     * @throws IOException on errors
+     */
+    private boolean count(int doc, String query, int qhash) throws IOException {
+      final long start = column.start(doc), end = column.end(doc);
+      if(start == end)
+        return false;
+      String[] lis = null; // Only needed to confirm exact matches.
+      // Entries are sorted by entity, so each entity is counted once:
+      int prev = -1, exact = -1;
+      for(long p = start; p < end; p++) {
+        final int targ = column.entity(p);
+        if(targ != prev)
+          counters.addTo(prev = targ, 1);
+        if(column.label(p) == qhash && exact != targ) {
+          if(lis == null)
+            lis = LuceneWikipediaIndexer.getLinks(searcher.getIndexReader(), doc).split("\t");
+          if(isExact(lis, targ, query)) {
+            counters.addTo(exact = targ, EXACT);
+          }
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Confirm that a link to an entity has exactly the query as label.
+     *
+     * @param lis Link targets and labels
+     * @param targ Entity number
+     * @param query Query phrase
+     * @return {@code true} if confirmed
+     */
+    private boolean isExact(String[] lis, int targ, String query) {
+      for(int j = 0; j + 1 < lis.length; j += 2)
+        if(lis[j + 1].equalsIgnoreCase(query) && datamap.getInt(lis[j]) == targ)
+          return true;
+      return false;
+    }
+
+    /**
+     * Count the targets of the links of a matching document.
+     *
+     * @param links Links of the document
+     * @param query Query phrase
+     * @return {@code true} if any link had a known target
+     */
+    private boolean count(String links, String query) {
+      String[] lis = links.split("\t");
+      if(lis.length == 0) {
+        // String dtitle = d.get(LuceneWikipediaIndexer.LUCENE_FIELD_TITLE);
+        // System.err.format("No links for %s.\n", dtitle);
+        return false;
+      }
+      dups.clear();
+      dupsExact.clear();
+      // Even positions are link targets:
+      // Beware: Java "split" loses trailing separators!
+      boolean used = false;
+      for(int j = 0; j < lis.length; j += 2) {
+        final int targ = datamap.getInt(lis[j]);
+        if(targ >= 0) {
+          if(dups.add(targ)) {
+            counters.addTo(targ, 1);
+            used = true;
+          }
+          if(j + 1 < lis.length && lis[j + 1].equalsIgnoreCase(query) && dupsExact.add(targ))
+            counters.addTo(targ, EXACT);
+        }
+      }
+      return used;
+    }
+
+    /**
+     * Collector that counts the links of every matching document, without
+     * scoring, and without a limit on the number of hits.
+     *
+     * Most phrases are too rare to be used, so the first documents are only
+     * remembered, and their links are only read once the phrase has enough
+     * mentions.
+     *
+     * @author Erich Schubert
+     */
+    private class LinkCounter extends SimpleCollector {
+      /** Query phrase */
+      String query;
+
+      /** Label hash of the query */
+      int qhash;
+
+      /** Number of hits, and of documents with known link targets */
+      int hits, weight;
+
+      /** Documents of the first hits (global document numbers) */
+      int[] first = new int[MINIMUM_MENTIONS - 1];
+
+      /** Current segment */
+      LeafReaderContext leaf;
+
+      /**
+       * Start a new query.
+       *
+       * @param query Query phrase
+       */
+      void start(String query) {
+        this.query = query;
+        this.qhash = EntityColumn.labelHash(query, 0, query.length());
+        hits = weight = 0;
+      }
+
+      @Override
+      protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        leaf = context;
+      }
+
+      @Override
+      public void collect(int doc) throws IOException {
+        if(hits < MINIMUM_MENTIONS - 1) {
+          first[hits++] = leaf.docBase + doc;
+          return;
+        }
+        if(hits++ == MINIMUM_MENTIONS - 1)
+          countFirst();
+        if(column != null ? count(leaf.docBase + doc, query, qhash) : count(LuceneWikipediaIndexer.getLinks(leaf.reader(), doc), query))
+          weight++;
+      }
+
+      /**
+       * Process a hit found by a concurrent search.
+       *
+       * @param doc Global document number
+       * @throws IOException on errors
+       */
+      void hit(int doc) throws IOException {
+        if(hits < MINIMUM_MENTIONS - 1) {
+          first[hits++] = doc;
+          return;
+        }
+        if(hits++ == MINIMUM_MENTIONS - 1)
+          countFirst();
+        if(countGlobal(doc))
+          weight++;
+      }
+
+      /**
+       * The phrase has enough mentions, so we need the first hits, too.
+       *
+       * @throws IOException on errors
+       */
+      private void countFirst() throws IOException {
+        for(int i = 0; i < first.length; i++)
+          if(countGlobal(first[i]))
+            weight++;
+      }
+
+      /**
+       * Count the links of a document.
+       *
+       * @param doc Global document number
+       * @return {@code true} if any link had a known target
+       * @throws IOException on errors
+       */
+      private boolean countGlobal(int doc) throws IOException {
+        return column != null ? count(doc, query, qhash) : //
+            count(LuceneWikipediaIndexer.getLinks(searcher.getIndexReader(), doc), query);
+      }
+
+      @Override
+      public boolean needsScores() {
+        return false;
+      }
+    }
   }
 
   public void readall(String nam) {
@@ -371,6 +770,14 @@ public class AnalyzeLinks {
         }
         try {
           Candidate cand = new Candidate(line);
+          if(touched != null && !touched.contains(line)) {
+            // Unchanged, keep the previous result:
+            cand.matches = previous.get(line);
+            if(cand.matches == null)
+              cand.query = null;
+            outqueue.put(cand);
+            continue;
+          }
           proqueue.put(cand);
           outqueue.put(cand);
         }
@@ -410,7 +817,8 @@ public class AnalyzeLinks {
                 break;
               }
               synchronized(monitor) {
-                monitor.wait(); // Wait for wakeup signal
+                if(a.query != null && a.matches == null)
+                  monitor.wait(); // Wait for wakeup signal
               }
             }
           }
@@ -428,7 +836,7 @@ public class AnalyzeLinks {
 
   public static void main(String[] args) {
     try {
-      (new AnalyzeLinks()).run();
+      (new AnalyzeLinks()).run(args.length > 0 && "--update".equals(args[0]));
     }
     catch(IOException e) {
       e.printStackTrace();
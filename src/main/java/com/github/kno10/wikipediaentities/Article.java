@@ -1,13 +1,25 @@
 package com.github.kno10.wikipediaentities;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Class representing an article.
  *
+ * The raw text is kept in UTF-8 encoding, which for the mostly ASCII wiki
+ * markup needs about half the memory of a string, while the article is
+ * waiting to be parsed. It is only decoded when needed, by {@link #rawtext()}.
+ *
  * @author Erich Schubert
  */
 public class Article {
   /** Original content */
-  String prefix, title, redirect, rawtext;
+  String prefix, title, redirect;
+
+  /** Raw text, UTF-8 encoded */
+  byte[] text;
+
+  /** SHA1 of the revision, may be {@code null} */
+  String sha1;
 
   /**
    * Constructor.
@@ -18,10 +30,56 @@ public class Article {
    * @param rawtext Rawtext
    */
   public Article(String prefix, String title, String redirect, String rawtext) {
+    this(prefix, title, redirect, rawtext != null ? rawtext.getBytes(StandardCharsets.UTF_8) : null, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param prefix Prefix
+   * @param title Title
+   * @param redirect Redirect
+   * @param rawtext Rawtext
+   * @param sha1 Revision SHA1
+   */
+  public Article(String prefix, String title, String redirect, String rawtext, String sha1) {
+    this(prefix, title, redirect, rawtext != null ? rawtext.getBytes(StandardCharsets.UTF_8) : null, sha1);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param prefix Prefix
+   * @param title Title
+   * @param redirect Redirect
+   * @param text Raw text, UTF-8 encoded; not copied
+   * @param sha1 Revision SHA1
+   */
+  public Article(String prefix, String title, String redirect, byte[] text, String sha1) {
     super();
     this.prefix = prefix;
     this.title = title;
     this.redirect = redirect;
-    this.rawtext = rawtext;
+    this.text = text;
+    this.sha1 = sha1;
+  }
+
+  /**
+   * Decode the raw text. The result is not kept, so call this only once.
+   *
+   * @return Raw text
+   */
+  public String rawtext() {
+    return text != null ? new String(text, StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * Approximate memory size of the article text, for bounding the amount of
+   * text in flight.
+   *
+   * @return Size in bytes
+   */
+  public long size() {
+    return text != null ? text.length : 0;
   }
 }
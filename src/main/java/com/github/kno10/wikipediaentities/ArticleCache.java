@@ -0,0 +1,205 @@
+package com.github.kno10.wikipediaentities;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Cache of the extracted contents of articles, to skip unchanged articles when
+ * processing the next dump.
+ *
+ * Articles are identified by the wiki prefix, their title, and the SHA1 of the
+ * revision given in the dump. For each article, we store the cleaned title, the
+ * links (as passed to the link handlers) and the tokens of the text (as
+ * indexed by Lucene). The cache itself is a Lucene index: the previous cache
+ * is only read, and all articles of the current run are written to a new cache.
+ *
+ * @author Erich Schubert
+ */
+public class ArticleCache {
+  /** Lucene field names */
+  static final String FIELD_KEY = "k", FIELD_TITLE = "c", FIELD_LINKS = "l", FIELD_TOKENS = "t";
+
+  /** Previous cache, may be {@code null} */
+  private DirectoryReader reader;
+
+  /** Searcher for the previous cache */
+  private IndexSearcher searcher;
+
+  /** New cache, may be {@code null} */
+  private IndexWriter writer;
+
+  /** Statistics */
+  private AtomicLong lookups = new AtomicLong(), hits = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param input Directory of the previous cache, may be {@code null}
+   * @param output Directory for the new cache, may be {@code null}
+   * @param resume Keep the contents of the new cache, to resume from a
+   *        checkpoint
+   * @throws IOException on errors opening the caches
+   */
+  public ArticleCache(String input, String output, boolean resume) throws IOException {
+    if(input != null && !input.isEmpty()) {
+      reader = DirectoryReader.open(FSDirectory.open(FileSystems.getDefault().getPath(input)));
+      searcher = new IndexSearcher(reader);
+    }
+    if(output != null && !output.isEmpty()) {
+      IndexWriterConfig config = new IndexWriterConfig(new KeywordAnalyzer());
+      config.setOpenMode(resume ? OpenMode.APPEND : OpenMode.CREATE);
+      writer = new IndexWriter(FSDirectory.open(FileSystems.getDefault().getPath(output)), config);
+    }
+  }
+
+  /**
+   * Make a recorder for a single thread.
+   *
+   * @return Recorder, {@code null} if the cache is not used.
+   */
+  public Recorder makeRecorder() {
+    return (reader != null || writer != null) ? new Recorder() : null;
+  }
+
+  /**
+   * Commit the new cache, as part of a checkpoint.
+   *
+   * @throws IOException on errors
+   */
+  public void commit() throws IOException {
+    if(writer != null)
+      writer.commit();
+  }
+
+  public void close() throws IOException {
+    if(reader != null) {
+      System.err.format("Article cache: %d of %d articles unchanged.\n", hits.get(), lookups.get());
+      reader.close();
+    }
+    if(writer != null) {
+      System.err.format("Closing %s output.\n", getClass().getSimpleName());
+      writer.commit();
+      writer.close();
+    }
+  }
+
+  /**
+   * Cache access for a single thread.
+   *
+   * The parser thread looks up each article; if it is not found, the indexer
+   * records the extracted contents for the same article. If the indexer runs
+   * in a separate stage, the key is passed along with the article.
+   *
+   * @author Erich Schubert
+   */
+  public class Recorder {
+    /** Key of the current article, {@code null} if not cacheable */
+    private String key;
+
+    /** Cached contents of the current article */
+    String title, tokens;
+
+    /** Cached links of the current article */
+    String[] links;
+
+    /**
+     * Look up an article in the previous cache.
+     *
+     * @param prefix Wiki prefix
+     * @param title Raw article title
+     * @param sha1 Revision SHA1
+     * @return {@code true} if the cached contents are available.
+     */
+    public boolean lookup(String prefix, String title, String sha1) {
+      key = (sha1 != null && writer != null) ? prefix + title + '\t' + sha1 : null;
+      if(sha1 == null || searcher == null)
+        return false;
+      lookups.incrementAndGet();
+      try {
+        TopDocs top = searcher.search(new TermQuery(new Term(FIELD_KEY, prefix + title + '\t' + sha1)), 1);
+        if(top.totalHits == 0)
+          return false;
+        Document doc = searcher.doc(top.scoreDocs[0].doc);
+        this.title = doc.get(FIELD_TITLE);
+        this.links = doc.getValues(FIELD_LINKS);
+        this.tokens = doc.get(FIELD_TOKENS);
+        hits.incrementAndGet();
+        return true;
+      }
+      catch(IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    /**
+     * Take the key of the current article, to record it in another thread.
+     *
+     * @return Key, {@code null} if not cacheable.
+     */
+    public String takeKey() {
+      String k = key;
+      key = null;
+      return k;
+    }
+
+    /**
+     * Set the key of the current article, looked up in another thread.
+     *
+     * @param key Key, {@code null} if not cacheable.
+     */
+    public void setKey(String key) {
+      this.key = key;
+    }
+
+    /**
+     * Test if the contents of the current article should be recorded.
+     *
+     * @return {@code true} when recording.
+     */
+    public boolean isRecording() {
+      return key != null;
+    }
+
+    /**
+     * Record the extracted contents of the current article.
+     *
+     * @param title Article title
+     * @param links Link targets and labels, alternating
+     * @param tokens Tokenized text, separated by spaces
+     */
+    public void record(String title, List<String> links, CharSequence tokens) {
+      if(key == null)
+        return;
+      Document doc = new Document();
+      doc.add(new StringField(FIELD_KEY, key, Field.Store.NO));
+      doc.add(new StoredField(FIELD_TITLE, title));
+      for(String s : links)
+        doc.add(new StoredField(FIELD_LINKS, s));
+      doc.add(new StoredField(FIELD_TOKENS, tokens.toString()));
+      try {
+        writer.addDocument(doc);
+      }
+      catch(IOException e) {
+        throw new RuntimeException(e);
+      }
+      key = null;
+    }
+  }
+}
@@ -0,0 +1,413 @@
+package com.github.kno10.wikipediaentities;
+
+import java.util.Arrays;
+
+import com.github.kno10.wikipediaentities.util.Autotuner;
+import com.github.kno10.wikipediaentities.util.BatchQueue;
+import com.github.kno10.wikipediaentities.util.CharSlice;
+
+/**
+ * Run the following handlers as a separate stage of the pipeline, with its
+ * own pool of worker threads and a bounded queue.
+ *
+ * The events of one article (any number of links detected, followed by the
+ * article or redirect itself) are collected into a single unit, and replayed
+ * by one worker in the original order, so the per-thread state of the
+ * following handlers remains consistent. The detected links are copied into a
+ * single buffer of the unit, and replayed as views of it to handlers that
+ * accept them ({@link CharSequenceHandler}).
+ *
+ * Each unit is counted as pending work of the {@link Checkpoint} until it has
+ * been replayed. Units are therefore handed off immediately rather than in
+ * batches, or a checkpoint could wait forever for a unit sitting in the buffer
+ * of an idle thread.
+ *
+ * @author Erich Schubert
+ */
+public class AsyncHandler {
+  /** Stage name, for logging */
+  private String name;
+
+  /** Queue of article units */
+  private BatchQueue<Unit> queue;
+
+  /** Checkpoint coordination */
+  private Checkpoint checkpoint;
+
+  /** Worker pool, may be {@code null} */
+  private Autotuner.Pool pool;
+
+  /** Number of workers */
+  private int workers = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param name Stage name, for logging
+   * @param capacity Maximum number of units in the queue
+   * @param maxbytes Maximum size of the article texts in the queue
+   * @param checkpoint Checkpoint coordination
+   */
+  public AsyncHandler(String name, int capacity, long maxbytes, Checkpoint checkpoint) {
+    this.name = name;
+    this.queue = new BatchQueue<>(capacity, 1, maxbytes);
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * Make the handler for a single thread of the previous stage.
+   *
+   * All of these handlers must be made before the workers are started.
+   *
+   * @param recorder Article cache of this thread, may be {@code null}
+   * @return Handler, for a single thread
+   */
+  public CharSequenceHandler makeThreadHandler(ArticleCache.Recorder recorder) {
+    return new InputHandler(queue.producer(), recorder);
+  }
+
+  /**
+   * Make the pool of workers, for tuning the number of active workers.
+   *
+   * Make at most {@code max} worker threads afterwards.
+   *
+   * @param initial Initial number of active workers
+   * @param max Maximum number of workers
+   * @param output Fill level of the queue of the next stage, may be
+   *        {@code null}
+   * @return Pool
+   */
+  public Autotuner.Pool makePool(int initial, int max, Autotuner.Gauge output) {
+    return pool = new Autotuner.Pool(name, 1, max, initial, queue, output);
+  }
+
+  /**
+   * Get the fill level of the queue of this stage.
+   *
+   * @return Gauge
+   */
+  public Autotuner.Gauge gauge() {
+    return queue;
+  }
+
+  /**
+   * Make a worker thread of this stage.
+   *
+   * @param handler Handler of this worker
+   * @param recorder Article cache of the handler, may be {@code null}
+   * @return Worker thread, not yet started
+   */
+  public Thread makeWorkerThread(Handler handler, ArticleCache.Recorder recorder) {
+    return new Worker(workers++, handler, recorder);
+  }
+
+  /**
+   * Get the queue statistics.
+   *
+   * @return Statistics, for logging
+   */
+  public String statistics() {
+    return name + " queue: " + queue.statistics();
+  }
+
+  /**
+   * The events of a single article.
+   *
+   * @author Erich Schubert
+   */
+  private static class Unit {
+    /** Event types */
+    static final int LINKS = 0, REDIRECT = 1, RAW = 2, CACHED = 3;
+
+    /** Type of the final event */
+    int type = LINKS;
+
+    /** Wiki prefix and article title */
+    String prefix, title;
+
+    /** Detected links: labels and targets, alternating */
+    char[] chars = new char[256];
+
+    /** End of each label and target in {@link #chars} */
+    int[] ends = new int[16];
+
+    /** Number of labels and targets */
+    int nends;
+
+    /** Event arguments: redirect and anchor, text, or tokens */
+    String a, b;
+
+    /** Cached links */
+    String[] clinks;
+
+    /** Pending article cache key */
+    String key;
+
+    /**
+     * Constructor.
+     *
+     * @param prefix Wiki prefix
+     * @param title Article title
+     */
+    Unit(String prefix, String title) {
+      this.prefix = prefix;
+      this.title = title;
+    }
+
+    /**
+     * Add a detected link.
+     *
+     * @param label Link label
+     * @param target Link target
+     */
+    void addLink(CharSequence label, CharSequence target) {
+      append(label);
+      append(target);
+    }
+
+    /**
+     * Append a label or target to the buffer.
+     *
+     * @param s Text
+     */
+    private void append(CharSequence s) {
+      final int start = nends > 0 ? ends[nends - 1] : 0, l = s.length();
+      if(start + l > chars.length)
+        chars = Arrays.copyOf(chars, Math.max(start + l, chars.length << 1));
+      if(nends == ends.length)
+        ends = Arrays.copyOf(ends, nends << 1);
+      if(s instanceof CharSlice)
+        System.arraycopy(((CharSlice) s).array(), ((CharSlice) s).offset(), chars, start, l);
+      else if(s instanceof String)
+        ((String) s).getChars(0, l, chars, start);
+      else
+        for(int i = 0; i < l; i++)
+          chars[start + i] = s.charAt(i);
+      ends[nends++] = start + l;
+    }
+
+    /**
+     * Replay the events.
+     *
+     * @param h Handler
+     * @param label View for the link labels
+     * @param target View for the link targets
+     */
+    void replay(CharSequenceHandler h, CharSlice label, CharSlice target) {
+      for(int i = 0, start = 0; i < nends; i += 2) {
+        label.set(chars, start, ends[i]);
+        target.set(chars, ends[i], start = ends[i + 1]);
+        h.linkDetected(prefix, title, label, target);
+      }
+      if(type == REDIRECT)
+        h.redirect(prefix, title, a, b);
+      else if(type == RAW)
+        h.rawArticle(prefix, title, a);
+      else if(type == CACHED)
+        h.cachedArticle(prefix, title, clinks, a);
+    }
+
+    /**
+     * Approximate memory size of the unit.
+     *
+     * @return Size in bytes
+     */
+    long size() {
+      final long links = nends > 0 ? ((long) ends[nends - 1]) << 1 : 0;
+      return links + ((type == RAW || type == CACHED) && a != null ? ((long) a.length()) << 1 : 0);
+    }
+  }
+
+  /**
+   * Collect the events of a single thread of the previous stage.
+   *
+   * @author Erich Schubert
+   */
+  private class InputHandler implements CharSequenceHandler {
+    /** Queue producer */
+    private BatchQueue<Unit>.Producer out;
+
+    /** Article cache, may be {@code null} */
+    private ArticleCache.Recorder recorder;
+
+    /** Current unit, with links only */
+    private Unit cur;
+
+    /**
+     * Constructor.
+     *
+     * @param out Queue producer
+     * @param recorder Article cache, may be {@code null}
+     */
+    InputHandler(BatchQueue<Unit>.Producer out, ArticleCache.Recorder recorder) {
+      this.out = out;
+      this.recorder = recorder;
+    }
+
+    /**
+     * Get the unit of an article.
+     *
+     * @param prefix Wiki prefix
+     * @param title Article title
+     * @return Unit
+     */
+    private Unit unit(String prefix, String title) {
+      if(cur != null && !(cur.prefix.equals(prefix) && cur.title.equals(title)))
+        send(cur);
+      if(cur == null)
+        cur = new Unit(prefix, title);
+      return cur;
+    }
+
+    /**
+     * Finish an article.
+     *
+     * @param u Unit
+     * @param type Type of the final event
+     */
+    private void finish(Unit u, int type) {
+      u.type = type;
+      if(recorder != null)
+        u.key = recorder.takeKey();
+      send(u);
+    }
+
+    /**
+     * Hand off a unit to the workers.
+     *
+     * @param u Unit
+     */
+    private void send(Unit u) {
+      cur = null;
+      checkpoint.handoff();
+      try {
+        out.put(u, u.size());
+      }
+      catch(InterruptedException e) {
+        checkpoint.done();
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void redirect(String prefix, String title, String redirect, String anchor) {
+      Unit u = unit(prefix, title);
+      u.a = redirect;
+      u.b = anchor;
+      finish(u, Unit.REDIRECT);
+    }
+
+    @Override
+    public void rawArticle(String prefix, String title, String text) {
+      Unit u = unit(prefix, title);
+      u.a = text;
+      finish(u, Unit.RAW);
+    }
+
+    @Override
+    public void cachedArticle(String prefix, String title, String[] links, String tokens) {
+      Unit u = unit(prefix, title);
+      u.a = tokens;
+      u.clinks = links;
+      finish(u, Unit.CACHED);
+    }
+
+    @Override
+    public void linkDetected(String prefix, String title, CharSequence label, CharSequence target) {
+      unit(prefix, title).addLink(label, target);
+    }
+
+    @Override
+    public void linkDetected(String prefix, String title, String label, String target) {
+      unit(prefix, title).addLink(label, target);
+    }
+
+    @Override
+    public void close() {
+      if(cur != null)
+        send(cur);
+      try {
+        out.close();
+      }
+      catch(InterruptedException e) {
+        System.err.println("Processing interrupted.");
+      }
+    }
+  }
+
+  /**
+   * Worker thread, replaying the events to its handler.
+   *
+   * @author Erich Schubert
+   */
+  private class Worker extends Thread {
+    /** Handler */
+    private CharSequenceHandler handler;
+
+    /** Views of the link label and target */
+    private CharSlice label = new CharSlice(), target = new CharSlice();
+
+    /** Article cache of the handler, may be {@code null} */
+    private ArticleCache.Recorder recorder;
+
+    /** Worker number */
+    private int num;
+
+    /**
+     * Constructor.
+     *
+     * @param num Worker number
+     * @param handler Handler
+     * @param recorder Article cache of the handler, may be {@code null}
+     */
+    Worker(int num, Handler handler, ArticleCache.Recorder recorder) {
+      super(name);
+      this.num = num;
+      this.handler = CharSequenceHandler.Adapter.of(handler);
+      this.recorder = recorder;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while(true) {
+          if(pool != null)
+            pool.await(num);
+          BatchQueue.Batch<Unit> batch = queue.take();
+          if(batch == null)
+            break;
+          final long start = System.nanoTime();
+          try {
+            for(Unit u : batch) {
+              try {
+                if(recorder != null)
+                  recorder.setKey(u.key);
+                u.replay(handler, label, target);
+              }
+              finally {
+                checkpoint.done();
+              }
+            }
+          }
+          finally {
+            queue.release(batch);
+            if(pool != null)
+              pool.busy(System.nanoTime() - start);
+          }
+        }
+      }
+      catch(InterruptedException e) {
+        System.err.println("Processing interrupted.");
+      }
+      if(pool != null)
+        pool.finish(); // Let parked workers finish, too.
+      try {
+        checkpoint.closing();
+      }
+      catch(InterruptedException e) {
+        System.err.println("Processing interrupted.");
+      }
+      handler.close();
+    }
+  }
+}
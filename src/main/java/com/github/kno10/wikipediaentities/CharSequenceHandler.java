@@ -0,0 +1,84 @@
+package com.github.kno10.wikipediaentities;
+
+/**
+ * Handler that receives the detected links as views of the text, rather than
+ * as new strings.
+ *
+ * Millions of links are detected, and most handlers look at each only once.
+ * The label and target are only valid during the call to
+ * {@link #linkDetected(String, String, CharSequence, CharSequence)}; handlers
+ * that keep them must copy them. Use {@link Adapter#of} to send these events
+ * to a plain {@link Handler}.
+ *
+ * @author Erich Schubert
+ */
+public interface CharSequenceHandler extends Handler {
+  /**
+   * A new link was detected in an article
+   *
+   * @param prefix Wiki prefix
+   * @param title Article title
+   * @param label Link label, only valid during this call
+   * @param target Link target, only valid during this call
+   */
+  void linkDetected(String prefix, String title, CharSequence label, CharSequence target);
+
+  /**
+   * Adapter for handlers that need strings.
+   *
+   * @author Erich Schubert
+   */
+  class Adapter implements CharSequenceHandler {
+    /** Handler to send the events to */
+    private Handler handler;
+
+    /**
+     * Constructor.
+     *
+     * @param handler Handler to send the events to
+     */
+    private Adapter(Handler handler) {
+      this.handler = handler;
+    }
+
+    /**
+     * Adapt a handler, unless it already handles views.
+     *
+     * @param handler Handler
+     * @return Handler for views
+     */
+    public static CharSequenceHandler of(Handler handler) {
+      return handler instanceof CharSequenceHandler ? (CharSequenceHandler) handler : new Adapter(handler);
+    }
+
+    @Override
+    public void linkDetected(String prefix, String title, CharSequence label, CharSequence target) {
+      handler.linkDetected(prefix, title, label.toString(), target.toString());
+    }
+
+    @Override
+    public void linkDetected(String prefix, String title, String label, String target) {
+      handler.linkDetected(prefix, title, label, target);
+    }
+
+    @Override
+    public void redirect(String prefix, String title, String redirect, String anchor) {
+      handler.redirect(prefix, title, redirect, anchor);
+    }
+
+    @Override
+    public void rawArticle(String prefix, String title, String text) {
+      handler.rawArticle(prefix, title, text);
+    }
+
+    @Override
+    public void cachedArticle(String prefix, String title, String[] links, String tokens) {
+      handler.cachedArticle(prefix, title, links, tokens);
+    }
+
+    @Override
+    public void close() {
+      handler.close();
+    }
+  }
+}
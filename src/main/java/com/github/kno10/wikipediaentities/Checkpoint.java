@@ -0,0 +1,221 @@
+package com.github.kno10.wikipediaentities;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coordinate consistent checkpoints of the parsing process.
+ *
+ * To take a checkpoint, the readers are paused at a page boundary, and we wait
+ * until all articles handed off have been processed. The input positions of
+ * the readers are then stored along with the state of the collectors, and
+ * processing continues.
+ *
+ * Input positions are stored in the Lucene commit data, using the keys
+ * {@code source:filename} and values such as {@code pages:1234} or
+ * {@code bytes:1234}, depending on the reader.
+ *
+ * @author Erich Schubert
+ */
+public class Checkpoint {
+  /** Commit data key prefix for input positions */
+  public static final String SOURCE = "source:";
+
+  /** Commit data key for the checkpoint generation */
+  public static final String GENERATION = "checkpoint";
+
+  /** Commit data key for the length of the links output */
+  public static final String LINKS = "links";
+
+  /** Position of completely processed inputs */
+  public static final String DONE = "done";
+
+  /** Positions to resume from */
+  private Map<String, String> resume;
+
+  /** Current positions of the paused sources */
+  private Map<String, String> positions = new HashMap<>();
+
+  /** Registered sources */
+  private Set<String> sources = new HashSet<>();
+
+  /** Paused sources */
+  private Set<String> paused = new HashSet<>();
+
+  /** Finished sources */
+  private Set<String> finished = new HashSet<>();
+
+  /** Checkpoint requested */
+  private volatile boolean requested = false;
+
+  /** Handlers are being closed, no further checkpoints possible */
+  private boolean closing = false;
+
+  /** Articles handed off, but not yet completely processed */
+  private AtomicInteger pending = new AtomicInteger();
+
+  /**
+   * Constructor, for starting from scratch.
+   */
+  public Checkpoint() {
+    this(Collections.<String, String> emptyMap());
+  }
+
+  /**
+   * Constructor, for resuming.
+   *
+   * @param resume Commit data of the checkpoint to resume from
+   */
+  public Checkpoint(Map<String, String> resume) {
+    this.resume = resume;
+  }
+
+  /**
+   * Get the generation of the checkpoint we resumed from.
+   *
+   * @return Generation, 0 if not resuming.
+   */
+  public int getGeneration() {
+    String gen = resume.get(GENERATION);
+    return gen != null ? Integer.parseInt(gen) : 0;
+  }
+
+  /**
+   * Get the commit data of the checkpoint we resumed from.
+   *
+   * @param key Key
+   * @return Value, or {@code null}
+   */
+  public String getResumeData(String key) {
+    return resume.get(key);
+  }
+
+  /**
+   * Register a source, and get the position to resume from.
+   *
+   * @param source Source name
+   * @param unit Unit of the positions used by the reader
+   * @return Position to resume from, {@code Long.MAX_VALUE} if done.
+   */
+  public synchronized long register(String source, String unit) {
+    sources.add(source);
+    String pos = resume.get(SOURCE + source);
+    if(pos == null)
+      return 0L;
+    if(DONE.equals(pos))
+      return Long.MAX_VALUE;
+    if(!pos.startsWith(unit + ":"))
+      throw new IllegalStateException("Cannot resume " + source + " at " + pos + " with a reader using " + unit + ".");
+    return Long.parseLong(pos.substring(unit.length() + 1));
+  }
+
+  /**
+   * Reader: an article is handed off for processing.
+   */
+  public void handoff() {
+    pending.incrementAndGet();
+  }
+
+  /**
+   * Parser: an article has been completely processed.
+   */
+  public void done() {
+    if(pending.decrementAndGet() == 0 && requested)
+      synchronized(this) {
+        notifyAll();
+      }
+  }
+
+  /**
+   * Reader: test if a checkpoint has been requested, and articles buffered by
+   * the reader need to be handed off before pausing.
+   *
+   * @return {@code true} if a checkpoint was requested.
+   */
+  public boolean isRequested() {
+    return requested;
+  }
+
+  /**
+   * Reader: a safe position to pause for a checkpoint.
+   *
+   * @param source Source name
+   * @param unit Position unit
+   * @param pos Position
+   * @throws InterruptedException When interrupted
+   */
+  public void pause(String source, String unit, long pos) throws InterruptedException {
+    if(!requested)
+      return;
+    synchronized(this) {
+      if(!requested)
+        return;
+      positions.put(source, unit + ":" + pos);
+      paused.add(source);
+      notifyAll();
+      while(requested)
+        wait();
+    }
+  }
+
+  /**
+   * Reader: the reader has finished, and will not hand off further articles.
+   *
+   * @param source Source name
+   * @param pos Final position, {@link #DONE} if the source was read completely.
+   */
+  public synchronized void finished(String source, String pos) {
+    positions.put(source, pos);
+    finished.add(source);
+    paused.add(source);
+    notifyAll();
+  }
+
+  /**
+   * Parser: about to close the handlers, which must not happen during a
+   * checkpoint.
+   *
+   * @throws InterruptedException When interrupted
+   */
+  public synchronized void closing() throws InterruptedException {
+    while(requested)
+      wait();
+    closing = true;
+    notifyAll();
+  }
+
+  /**
+   * Request a checkpoint, and wait until processing has paused.
+   *
+   * @return Commit data with the current input positions, {@code null} if
+   *         processing is already finishing.
+   * @throws InterruptedException When interrupted
+   */
+  public synchronized Map<String, String> await() throws InterruptedException {
+    requested = true;
+    while(!closing && (!paused.containsAll(sources) || pending.get() > 0))
+      wait(1000);
+    if(closing) {
+      release();
+      return null;
+    }
+    Map<String, String> data = new HashMap<>();
+    for(Map.Entry<String, String> ent : positions.entrySet())
+      data.put(SOURCE + ent.getKey(), ent.getValue());
+    return data;
+  }
+
+  /**
+   * Continue processing after the checkpoint.
+   */
+  public synchronized void release() {
+    requested = false;
+    paused.removeAll(sources);
+    paused.addAll(finished);
+    notifyAll();
+  }
+}
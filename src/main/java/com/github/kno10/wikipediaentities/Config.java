@@ -36,4 +36,46 @@ public class Config {
 	public static String get(String name) {
 		return PROPERTIES.getProperty(name);
 	}
+
+	/**
+	 * Get a property value, with a default.
+	 * 
+	 * @param name
+	 *            Property name
+	 * @param def
+	 *            Default value, if not set
+	 * @return Value.
+	 */
+	public static String get(String name, String def) {
+		String v = PROPERTIES.getProperty(name);
+		return v != null ? v.trim() : def;
+	}
+
+	/**
+	 * Get an integer property value.
+	 * 
+	 * @param name
+	 *            Property name
+	 * @param def
+	 *            Default value, if not set
+	 * @return Value.
+	 */
+	public static int getInt(String name, int def) {
+		String v = PROPERTIES.getProperty(name);
+		return v != null ? Integer.parseInt(v.trim()) : def;
+	}
+
+	/**
+	 * Get a boolean property value.
+	 * 
+	 * @param name
+	 *            Property name
+	 * @param def
+	 *            Default value, if not set
+	 * @return Value.
+	 */
+	public static boolean getBoolean(String name, boolean def) {
+		String v = PROPERTIES.getProperty(name);
+		return v != null ? Boolean.parseBoolean(v.trim()) : def;
+	}
 }
@@ -0,0 +1,65 @@
+package com.github.kno10.wikipediaentities;
+
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Similarity that gives every match the same score.
+ *
+ * We only check whether a phrase occurs in an article, and never rank the
+ * results. This similarity neither computes term weights when a query is
+ * prepared, nor varies the norms of the fields that keep them.
+ *
+ * @author Erich Schubert
+ */
+public class ConstantSimilarity extends Similarity {
+  /** Shared weight, which ignores all statistics */
+  private static final SimWeight WEIGHT = new SimWeight() {
+    @Override
+    public float getValueForNormalization() {
+      return 1f;
+    }
+
+    @Override
+    public void normalize(float queryNorm, float boost) {
+      // Ignored.
+    }
+  };
+
+  /** Shared scorer */
+  private static final SimScorer SCORER = new SimScorer() {
+    @Override
+    public float score(int doc, float freq) {
+      return 1f;
+    }
+
+    @Override
+    public float computeSlopFactor(int distance) {
+      return 1f;
+    }
+
+    @Override
+    public float computePayloadFactor(int doc, int start, int end, BytesRef payload) {
+      return 1f;
+    }
+  };
+
+  @Override
+  public long computeNorm(FieldInvertState state) {
+    return 1L;
+  }
+
+  @Override
+  public SimWeight computeWeight(float queryBoost, CollectionStatistics collectionStats, TermStatistics... termStats) {
+    return WEIGHT;
+  }
+
+  @Override
+  public SimScorer simScorer(SimWeight weight, LeafReaderContext context) {
+    return SCORER;
+  }
+}
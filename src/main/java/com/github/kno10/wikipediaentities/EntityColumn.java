@@ -0,0 +1,201 @@
+package com.github.kno10.wikipediaentities;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Resolved link targets of every document of the index, as a memory mapped
+ * column of entity numbers.
+ *
+ * {@link AnalyzeLinks} reads the links of every document that contains a
+ * phrase, and resolves their targets through the redirects and Wikidata.
+ * Popular articles contain thousands of the phrases, and would be decoded,
+ * split and resolved again for each of them. Instead, we resolve the links of
+ * each document once, and store the entity number of every link with a known
+ * entity, together with a hash of the link label (see {@link #labelHash}), so
+ * that exact matches of the label can be recognized without the link text.
+ * Because the hash may collide, matches need to be confirmed with the text.
+ * The entries of a document are sorted by entity (and hash), without
+ * duplicates, so that counting each entity once per document needs no set.
+ *
+ * The entries are stored in a file, which is memory mapped in chunks; the
+ * offsets of the documents are kept in memory.
+ *
+ * @author Erich Schubert
+ */
+public class EntityColumn implements Closeable {
+  /** Chunk size, in ints (must be even) */
+  private static final int CHUNK_SHIFT = 28, CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+  /** Start of the entries of each document, and the end */
+  private long[] offsets;
+
+  /** Mapped entries: entity, label hash */
+  private IntBuffer[] chunks;
+
+  /** File name */
+  private File file;
+
+  /**
+   * Resolve link targets to entity numbers.
+   *
+   * @author Erich Schubert
+   */
+  public interface Resolver {
+    /**
+     * Resolve a link target.
+     *
+     * @param target Link target, with prefix
+     * @return Entity number, or -1
+     */
+    int resolve(String target);
+  }
+
+  /**
+   * Build the column for all documents of an index.
+   *
+   * @param reader Index reader
+   * @param resolver Link target resolution
+   * @param file File to write to
+   * @throws IOException on errors
+   */
+  public EntityColumn(IndexReader reader, Resolver resolver, File file) throws IOException {
+    this.file = file;
+    offsets = new long[reader.maxDoc() + 1];
+    long n = 0;
+    long[] buf = new long[256]; // Entries of one document
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+      for(LeafReaderContext ctx : reader.leaves()) {
+        LeafReader leaf = ctx.reader();
+        Bits live = leaf.getLiveDocs();
+        for(int d = 0, m = leaf.maxDoc(); d < m; d++) {
+          offsets[ctx.docBase + d] = n;
+          if(live != null && !live.get(d))
+            continue;
+          String links = LuceneWikipediaIndexer.getLinks(leaf, d);
+          int k = 0;
+          // Targets and labels, separated by tabs:
+          for(int s = 0, len = links.length(); s < len;) {
+            int t = links.indexOf('\t', s), e = t >= 0 ? links.indexOf('\t', t + 1) : -1;
+            if(e < 0)
+              e = len;
+            final int id = resolver.resolve(links.substring(s, t >= 0 ? t : len));
+            if(id >= 0) {
+              if(k == buf.length)
+                buf = Arrays.copyOf(buf, k << 1);
+              buf[k++] = ((long) id << 32) | ((t >= 0 ? labelHash(links, t + 1, e) : 0) & 0xFFFF_FFFFL);
+            }
+            s = e + 1;
+          }
+          Arrays.sort(buf, 0, k);
+          for(int i = 0; i < k; i++)
+            if(i == 0 || buf[i] != buf[i - 1]) {
+              out.writeLong(buf[i]); // Entity, then label hash
+              ++n;
+            }
+        }
+      }
+    }
+    offsets[reader.maxDoc()] = n;
+    // Map the entries:
+    chunks = new IntBuffer[(int) ((n << 1) + CHUNK_MASK >>> CHUNK_SHIFT)];
+    try (RandomAccessFile f = new RandomAccessFile(file, "r"); FileChannel c = f.getChannel()) {
+      for(int i = 0; i < chunks.length; i++) {
+        long start = (long) i << CHUNK_SHIFT, size = Math.min(1L << CHUNK_SHIFT, (n << 1) - start);
+        chunks[i] = c.map(FileChannel.MapMode.READ_ONLY, start << 2, size << 2).asIntBuffer();
+      }
+    }
+  }
+
+  /**
+   * Hash of a link label, ignoring case as {@link String#equalsIgnoreCase}.
+   *
+   * @param s Text
+   * @param start Start
+   * @param end End
+   * @return Hash code
+   */
+  public static int labelHash(CharSequence s, int start, int end) {
+    int h = 0;
+    for(int i = start; i < end; i++)
+      h = h * 31 + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+    return h;
+  }
+
+  /**
+   * Position of the first entry of a document.
+   *
+   * @param doc Document number
+   * @return Position
+   */
+  public long start(int doc) {
+    return offsets[doc];
+  }
+
+  /**
+   * Position after the last entry of a document.
+   *
+   * @param doc Document number
+   * @return Position
+   */
+  public long end(int doc) {
+    return offsets[doc + 1];
+  }
+
+  /**
+   * Entity of an entry.
+   *
+   * @param pos Position
+   * @return Entity number
+   */
+  public int entity(long pos) {
+    final long i = pos << 1;
+    return chunks[(int) (i >>> CHUNK_SHIFT)].get((int) (i & CHUNK_MASK));
+  }
+
+  /**
+   * Label hash of an entry.
+   *
+   * @param pos Position
+   * @return Label hash
+   */
+  public int label(long pos) {
+    final long i = (pos << 1) + 1;
+    return chunks[(int) (i >>> CHUNK_SHIFT)].get((int) (i & CHUNK_MASK));
+  }
+
+  /**
+   * Number of entries.
+   *
+   * @return Number of entries
+   */
+  public long size() {
+    return offsets[offsets.length - 1];
+  }
+
+  /**
+   * Release the column, and remove the file.
+   */
+  @Override
+  public void close() {
+    chunks = null;
+    offsets = null;
+    // The mapping is only released by the garbage collector; on Windows, the
+    // file cannot be deleted before.
+    if(!file.delete())
+      file.deleteOnExit();
+  }
+}
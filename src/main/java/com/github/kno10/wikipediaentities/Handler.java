@@ -32,6 +32,21 @@ public interface Handler {
 	 */
 	void rawArticle(String prefix, String title, String text);
 
+	/**
+	 * Process an article that is unchanged since the previous run, using the
+	 * cached results instead of the raw text.
+	 *
+	 * @param prefix
+	 *            Wiki prefix
+	 * @param title
+	 *            Article title
+	 * @param links
+	 *            Link targets and labels, alternating
+	 * @param tokens
+	 *            Tokenized text, separated by spaces
+	 */
+	void cachedArticle(String prefix, String title, String[] links, String tokens);
+
 	/**
 	 * A new link was detected in an article
 	 *
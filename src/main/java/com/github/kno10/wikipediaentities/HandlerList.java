@@ -8,10 +8,13 @@ import java.util.Collection;
  *
  * @author Erich Schubert
  */
-public class HandlerList implements Handler {
+public class HandlerList implements CharSequenceHandler {
 	/** Handler list. */
 	Collection<Handler> handlers = new ArrayList<>();
 
+	/** The same handlers, adapted to receive views. */
+	Collection<CharSequenceHandler> views = new ArrayList<>();
+
 	@Override
 	public void redirect(String prefix, String title, String redirect, String anchor) {
 		for (Handler h : handlers)
@@ -24,12 +27,24 @@ public class HandlerList implements Handler {
 			h.rawArticle(prefix, title, text);
 	}
 
+	@Override
+	public void cachedArticle(String prefix, String title, String[] links, String tokens) {
+		for (Handler h : handlers)
+			h.cachedArticle(prefix, title, links, tokens);
+	}
+
 	@Override
 	public void linkDetected(String prefix, String title, String label, String target) {
 		for (Handler h : handlers)
 			h.linkDetected(prefix, title, label, target);
 	}
 
+	@Override
+	public void linkDetected(String prefix, String title, CharSequence label, CharSequence target) {
+		for (CharSequenceHandler h : views)
+			h.linkDetected(prefix, title, label, target);
+	}
+
 	@Override
 	public void close() {
 		for (Handler h : handlers)
@@ -44,5 +59,6 @@ public class HandlerList implements Handler {
 	 */
 	public void add(Handler h) {
 		handlers.add(h);
+		views.add(CharSequenceHandler.Adapter.of(h));
 	}
 }
@@ -0,0 +1,209 @@
+package com.github.kno10.wikipediaentities;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import com.github.kno10.wikipediaentities.util.Util;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * State of an incremental update, applying the changed pages of an
+ * "adds-changes" dump to the outputs of a previous full run.
+ *
+ * We keep a reader on the index as it was before the update, to find the
+ * previous version of changed articles, and collect the titles of all
+ * changed articles. At the end, we record which link texts occur in the
+ * previous or the new version of a changed article: only for these phrases,
+ * the results of {@link AnalyzeLinks} can change.
+ *
+ * @author Erich Schubert
+ */
+public class IncrementalUpdate {
+  /** Index before the update */
+  private IndexReader old;
+
+  /** The index is sharded */
+  private boolean sharded;
+
+  /** Searcher for the index before the update */
+  private IndexSearcher searcher;
+
+  /** Titles (with prefix) of all changed articles */
+  private Set<String> touched = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Constructor.
+   *
+   * @param dir Index directory, before the update
+   * @param sharded The index is sharded
+   * @throws IOException on errors opening the index
+   */
+  public IncrementalUpdate(String dir, boolean sharded) throws IOException {
+    this.sharded = sharded;
+    old = LuceneWikipediaIndexer.openReader(dir, sharded);
+    searcher = new IndexSearcher(old);
+  }
+
+  /**
+   * Mark an article as changed.
+   *
+   * @param title Title, with prefix
+   */
+  public void touch(String title) {
+    touched.add(title);
+  }
+
+  /**
+   * Test if an article was changed.
+   *
+   * @param title Title, with prefix
+   * @return {@code true} if the article was changed.
+   */
+  public boolean isTouched(String title) {
+    return touched.contains(title);
+  }
+
+  /**
+   * Get the links of the previous version of an article.
+   *
+   * @param title Title, with prefix
+   * @return Link targets and labels, alternating; {@code null} if the article
+   *         was not in the index.
+   */
+  public String[] oldLinks(String title) {
+    try {
+      TopDocs top = searcher.search(new TermQuery(new Term(LuceneWikipediaIndexer.LUCENE_FIELD_TITLE, title)), 1);
+      if(top.totalHits == 0)
+        return null;
+      String links = LuceneWikipediaIndexer.getLinks(old, top.scoreDocs[0].doc);
+      return links == null || links.isEmpty() ? new String[0] : links.split("\t");
+    }
+    catch(IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Write all link texts that occur in the previous or the new version of a
+   * changed article.
+   *
+   * Must be called after the updated index has been closed.
+   *
+   * @param dir Index directory
+   * @param linktext Link text file (as written by {@link LuceneLinkTokenizer})
+   * @param out Output file name
+   * @throws IOException on errors
+   */
+  public void writeTouchedPhrases(String dir, String linktext, String out) throws IOException {
+    System.err.format("Finding link texts in %d changed articles.\n", touched.size());
+    try (IndexReader cur = LuceneWikipediaIndexer.openReader(dir, sharded); //
+        BufferedReader r = new BufferedReader(new InputStreamReader(Util.openInput(linktext), "UTF-8")); //
+        PrintStream w = Util.openOutput(out)) {
+      IndexSearcher csearcher = new IndexSearcher(cur);
+      int[][] olddocs = touchedDocs(old), curdocs = touchedDocs(cur);
+      int c = 0;
+      for(String line; (line = r.readLine()) != null;) {
+        PhraseQuery.Builder pq = new PhraseQuery.Builder();
+        for(String t : line.split(" "))
+          pq.add(new Term(LuceneWikipediaIndexer.LUCENE_FIELD_TEXT, t));
+        PhraseQuery q = pq.build();
+        if(matches(searcher, q, olddocs) || matches(csearcher, q, curdocs)) {
+          w.append(line).append('\n');
+          ++c;
+        }
+      }
+      System.err.format("%d link texts need to be analyzed again.\n", c);
+    }
+    old.close();
+  }
+
+  /**
+   * Find the documents of the changed articles.
+   *
+   * @param reader Index reader
+   * @return Sorted document ids, for each index segment.
+   * @throws IOException on errors
+   */
+  private int[][] touchedDocs(IndexReader reader) throws IOException {
+    int[][] docs = new int[reader.leaves().size()][];
+    IntArrayList buf = new IntArrayList();
+    for(LeafReaderContext ctx : reader.leaves()) {
+      buf.clear();
+      LeafReader leaf = ctx.reader();
+      Bits live = leaf.getLiveDocs();
+      Terms terms = leaf.terms(LuceneWikipediaIndexer.LUCENE_FIELD_TITLE);
+      if(terms != null) {
+        TermsEnum te = terms.iterator();
+        PostingsEnum pe = null;
+        for(String title : touched) {
+          if(!te.seekExact(new BytesRef(title)))
+            continue;
+          pe = te.postings(pe, PostingsEnum.NONE);
+          for(int d = pe.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = pe.nextDoc())
+            if(live == null || live.get(d))
+              buf.add(d);
+        }
+      }
+      int[] a = buf.toIntArray();
+      Arrays.sort(a);
+      docs[ctx.ord] = a;
+    }
+    return docs;
+  }
+
+  /**
+   * Test if a phrase occurs in any of the given documents.
+   *
+   * @param searcher Searcher
+   * @param q Phrase query
+   * @param docs Document ids, for each segment
+   * @return {@code true} on a match
+   * @throws IOException on errors
+   */
+  private static boolean matches(IndexSearcher searcher, PhraseQuery q, int[][] docs) throws IOException {
+    Weight w = searcher.createNormalizedWeight(q, false);
+    for(LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+      int[] d = docs[ctx.ord];
+      if(d.length == 0)
+        continue;
+      Scorer s = w.scorer(ctx);
+      if(s == null)
+        continue;
+      for(int i = 0; i < d.length; i++) {
+        int n = s.docID() < d[i] ? s.advance(d[i]) : s.docID();
+        if(n == d[i])
+          return true;
+        if(n == DocIdSetIterator.NO_MORE_DOCS)
+          break;
+        // Skip documents that cannot match anymore.
+        while(i + 1 < d.length && d[i + 1] < n)
+          ++i;
+      }
+    }
+    return false;
+  }
+}
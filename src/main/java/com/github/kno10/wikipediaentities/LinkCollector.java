@@ -1,8 +1,13 @@
 package com.github.kno10.wikipediaentities;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
 
 import com.github.kno10.wikipediaentities.util.Util;
 
@@ -15,6 +20,21 @@ public class LinkCollector {
   /** Output writer */
   PrintStream writer;
 
+  /** Output file, for checkpointing */
+  FileOutputStream fout;
+
+  /** Compressed output, for checkpointing */
+  GZIPOutputStream gzout;
+
+  /** Handlers of the individual threads */
+  ArrayList<LinkHandler> handlers = new ArrayList<>();
+
+  /** Output file name, for incremental updates */
+  String out;
+
+  /** Incremental update, may be {@code null} */
+  IncrementalUpdate update;
+
   /**
    * Constructor
    *
@@ -25,28 +45,118 @@ public class LinkCollector {
     writer = Util.openOutput(out);
   }
 
+  /**
+   * Constructor, for checkpointing.
+   *
+   * @param out Output file name
+   * @param resume Length of the output file to resume at, or -1.
+   * @throws IOException When output file cannot be created
+   */
+  public LinkCollector(String out, long resume) throws IOException {
+    if(out == null) {
+      writer = System.out;
+      return;
+    }
+    fout = new FileOutputStream(out, resume >= 0);
+    if(resume >= 0)
+      fout.getChannel().truncate(resume);
+    openWriter(out.endsWith(".gz"));
+  }
+
+  /**
+   * Constructor, for incremental updates.
+   *
+   * The links of the changed articles are written to a temporary file, and
+   * merged with the previous output on {@link #close()}.
+   *
+   * @param out Output file name
+   * @param update Incremental update
+   * @throws IOException When output file cannot be created
+   */
+  public LinkCollector(String out, IncrementalUpdate update) throws IOException {
+    this.out = out;
+    this.update = update;
+    writer = Util.openOutput(out + ".changes");
+  }
+
+  /**
+   * Open the writer on the output file.
+   *
+   * @param compress Use gzip compression.
+   * @throws IOException on errors
+   */
+  private void openWriter(boolean compress) throws IOException {
+    gzout = compress ? new GZIPOutputStream(fout) : null;
+    writer = new PrintStream(compress ? gzout : fout, false, "UTF-8");
+  }
+
   /**
    * Make handler for a single thread.
    *
    * @return Threadsafe handler.
    */
   public Handler makeThreadHandler() {
-    return new LinkHandler();
+    LinkHandler h = new LinkHandler();
+    synchronized(this) {
+      handlers.add(h);
+    }
+    return h;
   }
 
-  class LinkHandler extends AbstractHandler {
+  /**
+   * Write all pending entries to disk, for a checkpoint.
+   *
+   * Must only be called while processing is paused.
+   *
+   * @return Length of the output file
+   * @throws IOException on errors
+   */
+  public synchronized long checkpoint() throws IOException {
+    if(fout == null)
+      return -1;
+    for(LinkHandler h : handlers)
+      h.nextEntry(null, null);
+    writer.flush();
+    if(gzout != null) // Finish the gzip member. Concatenated members are valid gzip files.
+      gzout.finish();
+    fout.getFD().sync();
+    long pos = fout.getChannel().position();
+    if(gzout != null) // Start the next member
+      openWriter(true);
+    return pos;
+  }
+
+  class LinkHandler extends AbstractHandler implements CharSequenceHandler {
     /** Current page name. */
     String curp = null, cur = null;
 
-    /** Observed link targets in current page */
-    ArrayList<String> targets = new ArrayList<>();
+    /** Observed link labels and targets in current page, each after a tab */
+    StringBuilder targets = new StringBuilder();
 
     @Override
     public void linkDetected(String prefix, String title, String label, String target) {
+      linkDetected(prefix, title, (CharSequence) label, (CharSequence) target);
+    }
+
+    @Override
+    public void linkDetected(String prefix, String title, CharSequence label, CharSequence target) {
       if(!prefix.equals(curp) || !title.equals(cur))
         nextEntry(prefix, title);
-      targets.add(label.replace('\t', ' '));
-      targets.add(target.replace('\t', ' '));
+      append(label);
+      append(target);
+    }
+
+    /**
+     * Append a column, replacing tabs.
+     *
+     * @param s Text
+     */
+    private void append(CharSequence s) {
+      targets.append('\t');
+      for(int i = 0, l = s.length(); i < l; i++) {
+        final char c = s.charAt(i);
+        targets.append(c == '\t' ? ' ' : c);
+      }
     }
 
     /**
@@ -56,31 +166,56 @@ public class LinkCollector {
      * @param next Next entry name
      */
     private void nextEntry(String prefix, String next) {
-      synchronized(writer) {
+      synchronized(LinkCollector.this) {
         // Write and close previous entry
         if(cur != null) {
           writer.append(curp);
           writer.append(cur);
-          for(String s : targets)
-            writer.append('\t').append(s);
+          writer.append(targets);
           writer.append('\n');
         }
       }
       curp = prefix;
       cur = next;
-      targets.clear();
+      targets.setLength(0);
     }
 
     @Override
     public void close() {
       nextEntry(null, null);
-      targets.clear();
     }
   }
 
-  public void close() {
+  public void close() throws IOException {
     System.err.format("Closing %s output.\n", getClass().getSimpleName());
     if(writer != System.out)
       writer.close();
+    if(update != null)
+      merge();
+  }
+
+  /**
+   * Merge the links of changed articles into the previous output.
+   *
+   * @throws IOException on errors
+   */
+  private void merge() throws IOException {
+    File f = new File(out), changes = new File(out + ".changes");
+    File tmp = new File(f.getParentFile(), "merging-" + f.getName());
+    try (PrintStream w = Util.openOutput(tmp.getPath())) {
+      try (BufferedReader r = new BufferedReader(new InputStreamReader(Util.openInput(out), "UTF-8"))) {
+        for(String line; (line = r.readLine()) != null;) {
+          int p = line.indexOf('\t');
+          if(!update.isTouched(p >= 0 ? line.substring(0, p) : line))
+            w.append(line).append('\n');
+        }
+      }
+      try (BufferedReader r = new BufferedReader(new InputStreamReader(Util.openInput(changes.getPath()), "UTF-8"))) {
+        for(String line; (line = r.readLine()) != null;)
+          w.append(line).append('\n');
+      }
+    }
+    if(!tmp.renameTo(f) || !changes.delete())
+      throw new IOException("Could not replace " + out);
   }
 }
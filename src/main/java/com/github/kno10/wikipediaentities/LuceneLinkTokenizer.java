@@ -1,6 +1,8 @@
 package com.github.kno10.wikipediaentities;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -12,6 +14,7 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.wikipedia.WikipediaTokenizer;
 
 import com.github.kno10.wikipediaentities.util.FastStringReader;
+import com.github.kno10.wikipediaentities.util.StringCache;
 import com.github.kno10.wikipediaentities.util.Util;
 
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
@@ -30,9 +33,24 @@ public class LuceneLinkTokenizer {
   /** Output file name */
   private String out;
 
+  /** File name for the link text counts, may be {@code null} */
+  private String counts;
+
+  /** Incremental update, may be {@code null} */
+  private IncrementalUpdate update;
+
   /** Minimum support to report */
   static final int MINSUPP = 3;
 
+  /** Handlers of the individual threads */
+  ArrayList<LinkHandler> handlers = new ArrayList<>();
+
+  /** Size of the cache of normalized labels, per thread */
+  private int cacheSize = 0;
+
+  /** Cache statistics of the closed handlers */
+  private long hits, misses, evictions;
+
   /**
    * Constructor
    *
@@ -42,16 +60,95 @@ public class LuceneLinkTokenizer {
     this.out = out;
   }
 
+  /**
+   * Constructor
+   *
+   * @param out Output file name
+   * @param counts File name for the link text counts, may be {@code null}
+   * @param update Incremental update of the previous counts, may be
+   *        {@code null}
+   * @throws IOException When the previous counts cannot be read
+   */
+  public LuceneLinkTokenizer(String out, String counts, IncrementalUpdate update) throws IOException {
+    this.out = out;
+    this.counts = counts;
+    this.update = update;
+    if(update != null) {
+      if(counts == null || counts.isEmpty())
+        throw new IOException("Incremental updates need the link text counts of the previous run.");
+      load(counts);
+    }
+  }
+
+  /**
+   * Cache the normalized labels in each thread. Labels are very repetitive,
+   * such as country names and years.
+   *
+   * @param cacheSize Number of labels to cache, per thread
+   */
+  public void setCacheSize(int cacheSize) {
+    this.cacheSize = cacheSize;
+  }
+
   /**
    * Make handler for a single thread.
    *
    * @return Threadsafe handler.
    */
   public Handler makeThreadHandler() {
-    return new LinkHandler();
+    LinkHandler h = new LinkHandler();
+    synchronized(this) {
+      handlers.add(h);
+    }
+    return h;
+  }
+
+  /**
+   * Write the link text counts collected so far, e.g. for a checkpoint.
+   *
+   * Must only be called while processing is paused.
+   *
+   * @param fname Counts file name
+   * @throws IOException on errors
+   */
+  public synchronized void writeCounts(String fname) throws IOException {
+    try (PrintStream writer = Util.openOutput(fname)) {
+      write(writer, links);
+      for(LinkHandler h : handlers)
+        if(h.links != null)
+          write(writer, h.links);
+    }
   }
 
-  class LinkHandler extends AbstractHandler {
+  /**
+   * Write link text counts.
+   *
+   * @param writer Output
+   * @param links Counts
+   */
+  private static void write(PrintStream writer, Object2IntOpenHashMap<String> links) {
+    for(ObjectIterator<Object2IntOpenHashMap.Entry<String>> it = links.object2IntEntrySet().fastIterator(); it.hasNext();) {
+      Object2IntOpenHashMap.Entry<String> ent = it.next();
+      writer.append(ent.getKey()).append('\t').append(Integer.toString(ent.getIntValue())).append('\n');
+    }
+  }
+
+  /**
+   * Load link text counts, e.g. of a checkpoint.
+   *
+   * @param fname Counts file name
+   * @throws IOException on errors
+   */
+  public synchronized void load(String fname) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(Util.openInput(fname), "UTF-8"))) {
+      for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+        int p = line.lastIndexOf('\t');
+        links.addTo(line.substring(0, p), Integer.parseInt(line.substring(p + 1)));
+      }
+    }
+  }
+
+  class LinkHandler extends AbstractHandler implements CharSequenceHandler {
     /** Link texts */
     Object2IntOpenHashMap<String> links = new Object2IntOpenHashMap<>();
 
@@ -70,6 +167,9 @@ public class LuceneLinkTokenizer {
     /** String reader */
     FastStringReader reader = new FastStringReader("");
 
+    /** Cache of normalized labels, the empty string if nothing remains */
+    StringCache cache = new StringCache(cacheSize);
+
     public LinkHandler() {
       tokenizer = new WikipediaTokenizer();
       stream = tokenizer;
@@ -81,7 +181,38 @@ public class LuceneLinkTokenizer {
 
     @Override
     public void linkDetected(String prefix, String title, String label, String target) {
-      // Normalize the link text.
+      linkDetected(prefix, title, (CharSequence) label, (CharSequence) target);
+    }
+
+    @Override
+    public void linkDetected(String prefix, String title, CharSequence label, CharSequence target) {
+      String norm = normalize(label);
+      if(norm != null)
+        links.addTo(norm, 1);
+    }
+
+    /**
+     * Normalize the link text, if not cached.
+     *
+     * @param label Link label
+     * @return Normalized label, {@code null} if empty.
+     */
+    private String normalize(CharSequence label) {
+      String norm = cache.get(label);
+      if(norm == null) {
+        norm = tokenize(label);
+        cache.put(label, norm != null ? norm : "");
+      }
+      return norm != null && norm.length() > 0 ? norm : null;
+    }
+
+    /**
+     * Tokenize the link text.
+     *
+     * @param label Link label
+     * @return Normalized label, {@code null} if empty.
+     */
+    private String tokenize(CharSequence label) {
       try {
         buf.delete(0, buf.length());
         tokenizer.reset();
@@ -94,13 +225,46 @@ public class LuceneLinkTokenizer {
             buf.append(' ');
           buf.append(termAtt.buffer(), 0, termAtt.length());
         }
-        if(buf.length() == 0)
-          return;
-        label = buf.toString();
-        links.addTo(label, 1);
+        return buf.length() > 0 ? buf.toString() : null;
       }
       catch(IOException e) { // Should never happen in FastStringReader
         e.printStackTrace();
+        return null;
+      }
+    }
+
+    @Override
+    public void rawArticle(String prefix, String title, String text) {
+      removeOld(prefix, title);
+    }
+
+    @Override
+    public void cachedArticle(String prefix, String title, String[] clinks, String tokens) {
+      removeOld(prefix, title);
+    }
+
+    @Override
+    public void redirect(String prefix, String title, String redirect, String anchor) {
+      removeOld(prefix, title);
+    }
+
+    /**
+     * When updating, remove the link texts of the previous article version.
+     *
+     * @param prefix Wiki prefix
+     * @param title Article title
+     */
+    private void removeOld(String prefix, String title) {
+      if(update == null)
+        return;
+      String[] old = update.oldLinks(prefix + title);
+      if(old == null)
+        return;
+      // Odd positions are the labels
+      for(int i = 1; i < old.length; i += 2) {
+        String label = normalize(old[i]);
+        if(label != null)
+          links.addTo(label, -1);
       }
     }
 
@@ -118,12 +282,20 @@ public class LuceneLinkTokenizer {
           }
         }
         links = null;
+        hits += cache.getHits();
+        misses += cache.getMisses();
+        evictions += cache.getEvictions();
+        cache = null;
       }
     }
   }
 
   public void close() throws IOException {
     System.err.format("Closing %s output.\n", getClass().getSimpleName());
+    if(cacheSize > 0 && hits + misses > 0)
+      System.err.format("Link label cache: %.1f%% of %d lookups hit, %d evicted.\n", hits * 100. / (hits + misses), hits + misses, evictions);
+    if(counts != null && !counts.isEmpty())
+      writeCounts(counts);
     PrintStream writer = Util.openOutput(out);
     // We sort everything here. This is expensive, but makes the output
     // files nicer to use in the future.
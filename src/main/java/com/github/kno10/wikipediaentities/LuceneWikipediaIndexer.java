@@ -1,28 +1,60 @@
 package com.github.kno10.wikipediaentities;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
 import org.apache.lucene.analysis.standard.ClassicFilter;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.wikipedia.WikipediaTokenizer;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat.Mode;
+import org.apache.lucene.codecs.lucene53.Lucene53Codec;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.UnicodeUtil;
 
+import com.github.kno10.wikipediaentities.util.CharSlice;
 import com.github.kno10.wikipediaentities.util.FastStringReader;
-import com.github.kno10.wikipediaentities.util.Util;
+import com.github.kno10.wikipediaentities.util.SlowArticles;
 
 /**
  * Class to load Wikipedia articles into a Lucene index.
@@ -39,9 +71,56 @@ public class LuceneWikipediaIndexer {
   /** Lucene field name for the links */
   public static final String LUCENE_FIELD_LINKS = "l";
 
-  /** Lucene index writer */
+  /** Index profiles, see {@link #LuceneWikipediaIndexer(String, boolean, IncrementalUpdate, String)} */
+  public static final String PROFILE_DEFAULT = "default", PROFILE_LEAN = "lean", PROFILE_COMPACT = "compact";
+
+  /**
+   * Text field of the lean and compact profiles: phrase queries need
+   * positions, but we never rank by length, so we omit the norms.
+   */
+  static final FieldType LEAN_TEXT = new FieldType(TextField.TYPE_NOT_STORED);
+
+  static {
+    LEAN_TEXT.setOmitNorms(true);
+    LEAN_TEXT.freeze();
+  }
+
+  /** Lucene index writer, {@code null} if sharded */
   private IndexWriter index;
 
+  /** Index writers of the shards, by prefix, {@code null} if not sharded */
+  private Map<String, IndexWriter> shards;
+
+  /** Index directory */
+  private File dir;
+
+  /** Codec, {@code null} for the default */
+  private Lucene53Codec codec;
+
+  /** Keep the existing index contents */
+  private boolean append;
+
+  /** Bulk build: RAM buffer size in MB, final number of segments, merge threads (0 for the defaults) */
+  private int ramMegabytes, segments, mergeThreads;
+
+  /** Statistics of the segments written by flushes and merges */
+  private TimedDirectory.Stats flushes = new TimedDirectory.Stats(), merges = new TimedDirectory.Stats();
+
+  /** Incremental update, may be {@code null} */
+  private IncrementalUpdate update;
+
+  /** Report of the slowest articles */
+  private SlowArticles slow = new SlowArticles(0);
+
+  /** Omit the norms of the text field */
+  private boolean omitNorms;
+
+  /** Store the links as doc values */
+  private boolean linkDocValues;
+
+  /** Shingles to index, may be {@code null} */
+  private ShingleVocabulary shingles;
+
   /**
    * Constructor
    *
@@ -49,9 +128,330 @@ public class LuceneWikipediaIndexer {
    * @throws IOException on errors opening the lucene index
    */
   public LuceneWikipediaIndexer(String dir) throws IOException {
-    FSDirectory ldir = FSDirectory.open(FileSystems.getDefault().getPath(dir));
+    this(dir, false);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param dir Directory for Lucene index.
+   * @param resume Keep the existing index contents, to resume from a checkpoint.
+   * @throws IOException on errors opening the lucene index
+   */
+  public LuceneWikipediaIndexer(String dir, boolean resume) throws IOException {
+    this(dir, resume, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param dir Directory for Lucene index.
+   * @param resume Keep the existing index contents, to resume from a checkpoint.
+   * @param update Incremental update of the existing index, may be
+   *        {@code null}
+   * @throws IOException on errors opening the lucene index
+   */
+  public LuceneWikipediaIndexer(String dir, boolean resume, IncrementalUpdate update) throws IOException {
+    this(dir, resume, update, PROFILE_DEFAULT);
+  }
+
+  /**
+   * Constructor
+   *
+   * {@link AnalyzeLinks} only checks for phrases, and then reads the links of
+   * the documents found. For this, the text field needs no norms, in the
+   * "lean" and "compact" profiles. The lean profile stores the links as binary
+   * doc values, for fast random access without decompressing a block of
+   * stored fields (but uncompressed). The compact profile keeps them in the
+   * stored fields, with the stronger compression mode (which is much slower to
+   * read).
+   *
+   * @param dir Directory for Lucene index.
+   * @param resume Keep the existing index contents, to resume from a checkpoint.
+   * @param update Incremental update of the existing index, may be
+   *        {@code null}
+   * @param profile Index profile: default, lean, or compact.
+   * @throws IOException on errors opening the lucene index
+   */
+  public LuceneWikipediaIndexer(String dir, boolean resume, IncrementalUpdate update, String profile) throws IOException {
+    this(dir, resume, update, profile, false);
+  }
+
+  /**
+   * Constructor
+   *
+   * With shards, there is one index per wiki (prefix), in a subdirectory of
+   * the index directory named after the prefix. All shards are committed
+   * together, with the same commit data. Use {@link #openReader} to read them.
+   *
+   * @param dir Directory for Lucene index.
+   * @param resume Keep the existing index contents, to resume from a checkpoint.
+   * @param update Incremental update of the existing index, may be
+   *        {@code null}
+   * @param profile Index profile: default, lean, or compact.
+   * @param sharded Build one index per wiki.
+   * @throws IOException on errors opening the lucene index
+   * @see #LuceneWikipediaIndexer(String, boolean, IncrementalUpdate, String)
+   */
+  public LuceneWikipediaIndexer(String dir, boolean resume, IncrementalUpdate update, String profile, boolean sharded) throws IOException {
+    this.update = update;
+    this.dir = new File(dir);
+    this.append = resume || update != null;
+    if(PROFILE_LEAN.equals(profile))
+      omitNorms = linkDocValues = true;
+    else if(PROFILE_COMPACT.equals(profile)) {
+      omitNorms = true;
+      codec = new Lucene53Codec(Mode.BEST_COMPRESSION);
+    }
+    else if(!PROFILE_DEFAULT.equals(profile))
+      throw new IllegalArgumentException("Unknown index profile: " + profile);
+    if(!sharded) {
+      index = openWriter(this.dir, append ? OpenMode.APPEND : OpenMode.CREATE);
+      return;
+    }
+    if(append && hasIndex(this.dir))
+      throw new IllegalArgumentException("Index in " + dir + " is not sharded.");
+    shards = new HashMap<>();
+    // Open the existing shards: to resume or update them, or else to clear
+    // them, so that no outdated shard remains.
+    for(File sub : shardDirectories(this.dir))
+      shards.put(sub.getName() + ":", openWriter(sub, append ? OpenMode.APPEND : OpenMode.CREATE));
+  }
+
+  /**
+   * Open an index writer.
+   *
+   * @param d Index directory
+   * @param mode Open mode
+   * @return Index writer
+   * @throws IOException on errors
+   */
+  private IndexWriter openWriter(File d, OpenMode mode) throws IOException {
     IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
-    index = new IndexWriter(ldir, config);
+    if(codec != null)
+      config.setCodec(codec);
+    if(omitNorms) // Not ranked, see AnalyzeLinks
+      config.setSimilarity(new ConstantSimilarity());
+    config.setOpenMode(mode);
+    IndexWriter w = new IndexWriter(new TimedDirectory(FSDirectory.open(d.toPath()), flushes, merges), config);
+    configure(w.getConfig());
+    return w;
+  }
+
+  /**
+   * Apply the bulk build settings to a writer.
+   *
+   * @param config Writer configuration
+   */
+  private void configure(LiveIndexWriterConfig config) {
+    if(ramMegabytes > 0)
+      config.setRAMBufferSizeMB(ramMegabytes);
+    if(segments > 0 && update == null)
+      config.setMergePolicy(NoMergePolicy.INSTANCE);
+    if(mergeThreads > 0 && config.getMergeScheduler() instanceof ConcurrentMergeScheduler)
+      ((ConcurrentMergeScheduler) config.getMergeScheduler()).setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+  }
+
+  /**
+   * Get the index writer for an article.
+   *
+   * @param prefix Article prefix
+   * @return Index writer
+   * @throws IOException on errors
+   */
+  private IndexWriter writer(String prefix) throws IOException {
+    if(shards == null)
+      return index;
+    synchronized(shards) {
+      IndexWriter w = shards.get(prefix);
+      if(w == null) {
+        String name = prefix.endsWith(":") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        if(name.isEmpty() || name.indexOf(File.separatorChar) >= 0)
+          throw new IllegalArgumentException("Cannot make a shard for prefix: " + prefix);
+        // New wiki, even when updating.
+        shards.put(prefix, w = openWriter(new File(dir, name), OpenMode.CREATE_OR_APPEND));
+      }
+      return w;
+    }
+  }
+
+  /**
+   * Get all index writers.
+   *
+   * @return Index writers
+   */
+  private Collection<IndexWriter> writers() {
+    if(shards == null)
+      return Collections.singleton(index);
+    synchronized(shards) {
+      return new ArrayList<>(shards.values());
+    }
+  }
+
+  /**
+   * Find the shards of an index.
+   *
+   * @param dir Index directory
+   * @return Subdirectories containing an index, sorted by name
+   * @throws IOException on errors
+   */
+  private static List<File> shardDirectories(File dir) throws IOException {
+    List<File> subs = new ArrayList<>();
+    File[] files = dir.listFiles();
+    if(files != null)
+      for(File f : files)
+        if(f.isDirectory() && hasIndex(f))
+          subs.add(f);
+    Collections.sort(subs);
+    return subs;
+  }
+
+  /**
+   * Test if a directory contains an index.
+   *
+   * @param d Directory
+   * @return {@code true} if there is a commit
+   * @throws IOException on errors
+   */
+  private static boolean hasIndex(File d) throws IOException {
+    try (FSDirectory ldir = FSDirectory.open(d.toPath())) {
+      return DirectoryReader.indexExists(ldir);
+    }
+  }
+
+  /**
+   * Open the index for reading.
+   *
+   * @param dir Index directory
+   * @param sharded Read all shards, as written with {@code sharded} set.
+   * @return Reader, over all shards
+   * @throws IOException on errors
+   */
+  public static IndexReader openReader(String dir, boolean sharded) throws IOException {
+    if(!sharded)
+      return DirectoryReader.open(FSDirectory.open(FileSystems.getDefault().getPath(dir)));
+    List<File> subs = shardDirectories(new File(dir));
+    if(subs.isEmpty())
+      throw new IndexNotFoundException("No index shards found in " + dir);
+    IndexReader[] readers = new IndexReader[subs.size()];
+    for(int i = 0; i < readers.length; i++)
+      readers[i] = DirectoryReader.open(FSDirectory.open(subs.get(i).toPath()));
+    return new MultiReader(readers);
+  }
+
+  /**
+   * Get the links of an indexed article.
+   *
+   * @param d Document
+   * @return Link targets and labels, separated by tabs
+   */
+  public static String getLinks(Document d) {
+    BytesRef b = d.getBinaryValue(LUCENE_FIELD_LINKS);
+    // Indexes of older versions stored a string.
+    return b != null ? b.utf8ToString() : d.get(LUCENE_FIELD_LINKS);
+  }
+
+  /**
+   * Get the links of an indexed article, from the doc values of the lean
+   * profile, or else from the stored fields.
+   *
+   * @param reader Index reader
+   * @param doc Document number
+   * @return Link targets and labels, separated by tabs
+   * @throws IOException on errors
+   */
+  public static String getLinks(IndexReader reader, int doc) throws IOException {
+    List<LeafReaderContext> leaves = reader.leaves();
+    LeafReaderContext ctx = leaves.get(ReaderUtil.subIndex(doc, leaves));
+    return getLinks(ctx.reader(), doc - ctx.docBase);
+  }
+
+  /**
+   * Get the links of an indexed article, within an index segment.
+   *
+   * @param leaf Segment reader
+   * @param doc Document number, within the segment
+   * @return Link targets and labels, separated by tabs
+   * @throws IOException on errors
+   * @see #getLinks(IndexReader, int)
+   */
+  public static String getLinks(LeafReader leaf, int doc) throws IOException {
+    BinaryDocValues links = leaf.getBinaryDocValues(LUCENE_FIELD_LINKS);
+    // Documents of the lean profile always have a value, possibly empty.
+    if(links != null && leaf.getDocsWithField(LUCENE_FIELD_LINKS).get(doc))
+      return links.get(doc).utf8ToString();
+    // Other profiles, or a segment merged with documents of another profile
+    String s = getLinks(leaf.document(doc, LINKS_ONLY));
+    return s != null ? s : "";
+  }
+
+  /** Stored fields to load for {@link #getLinks(IndexReader, int)} */
+  private static final Set<String> LINKS_ONLY = Collections.singleton(LUCENE_FIELD_LINKS);
+
+  /**
+   * Get the commit data of the last checkpoint.
+   *
+   * @return Commit data
+   */
+  public Map<String, String> getCommitData() {
+    for(IndexWriter w : writers())
+      if(!w.getCommitData().isEmpty())
+        return w.getCommitData();
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Commit the index, as part of a checkpoint.
+   *
+   * @param data Commit data
+   * @throws IOException on errors
+   */
+  public void commit(Map<String, String> data) throws IOException {
+    for(IndexWriter w : writers()) {
+      w.setCommitData(data);
+      w.commit();
+    }
+  }
+
+  /**
+   * Report the processing times of the articles.
+   *
+   * @param slow Report of the slowest articles
+   */
+  public void setSlowArticles(SlowArticles slow) {
+    this.slow = slow;
+  }
+
+  /**
+   * Index the shingles of a vocabulary, for faster phrase search.
+   *
+   * @param shingles Shingle vocabulary, may be {@code null}
+   */
+  public void setShingles(ShingleVocabulary shingles) {
+    this.shingles = shingles;
+  }
+
+  /**
+   * Settings for building a large index at once.
+   *
+   * A larger RAM buffer gives fewer and larger segments to begin with (each
+   * indexing thread writes its own). If a final number of segments is given,
+   * no segments are merged while indexing, so that merges do not compete with
+   * the parsers for I/O; instead, all segments are merged at the end, by
+   * several merge threads. Choose the number of segments with the search
+   * threads of the second phase in mind. Merges are not deferred for
+   * incremental updates.
+   *
+   * @param ramMegabytes RAM buffer, in MB (0 for the default)
+   * @param segments Final number of segments (0 to merge as usual)
+   * @param mergeThreads Number of merge threads (0 for the default)
+   */
+  public void setBulkBuild(int ramMegabytes, int segments, int mergeThreads) {
+    this.ramMegabytes = ramMegabytes;
+    this.segments = segments;
+    this.mergeThreads = mergeThreads;
+    for(IndexWriter w : writers())
+      configure(w.getConfig());
   }
 
   /**
@@ -61,7 +461,18 @@ public class LuceneWikipediaIndexer {
    * @return Threadsafe handler.
    */
   public Handler makeThreadHandler(Handler handler) {
-    return new IndexHandler(handler);
+    return new IndexHandler(handler, null);
+  }
+
+  /**
+   * Make handler for a single thread, using the article cache.
+   *
+   * @param handler Subhandlers.
+   * @param recorder Article cache recorder of this thread.
+   * @return Threadsafe handler.
+   */
+  public Handler makeThreadHandler(Handler handler, ArticleCache.Recorder recorder) {
+    return new IndexHandler(handler, recorder);
   }
 
   /**
@@ -69,153 +480,356 @@ public class LuceneWikipediaIndexer {
    *
    * @author Erich Schubert
    */
-  private class IndexHandler extends AbstractHandler {
+  private class IndexHandler extends AbstractHandler implements WikiTextLexer.Listener {
     /** Lucene Wikipedia tokenizer */
     private WikipediaTokenizer tokenizer;
 
     /** Filtered token stream */
     private TokenStream stream;
 
-    /** Patterns to strip from the wiki text */
-    private Matcher stripBasics = Pattern.compile("(<!--.*?-->|<math>(.*?)</math>|</?su[bp]>|^\\s*__\\w+__\\s*$)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE).matcher("");
+    /** Lexer for the wiki text */
+    private WikiTextLexer lexer = new WikiTextLexer();
+
+    /** Handler to send link detected events to. */
+    CharSequenceHandler handler;
 
-    /** Pattern to strip all templates, as we cannot reasonably parse them */
-    private Matcher stripTemplates = Pattern.compile("\\{\\{([^}{]*?)\\}\\}").matcher("");
+    /** Article cache, may be {@code null} */
+    ArticleCache.Recorder recorder;
 
-    /** Match links, which are not nested. */
-    // too much backtracking: private Matcher linkMatcher =
-    // Pattern.compile("\\[\\[\\s*([^\\]\\[\\|]*?)(?:\\s*#.*?)?(?:(?:\\s*\\|\\s*[^\\]\\[\\#\\|]*)*\\s*\\|([^\\]\\[\\#\\|]+))?\\s*\\]\\]").matcher("");
-    private Matcher linkMatcher = Pattern.compile("\\[\\[\\s*([^\\]\\[\\|]*?)(?:\\s*#.*?)?(?:\\s*\\|(?:[^\\]\\[\\#\\|]*\\|)?\\s*([^\\]\\[\\#\\|]+))?\\s*\\]\\]").matcher("");
+    /** Token recording, for the article cache */
+    RecordingFilter recording;
 
-    /** More cruft to remove */
-    private Matcher stripCruft = Pattern.compile("(?:<ref(?:[^<]*</ref|\\s+name\\s*=\\s*[^<]*|[^<]*/>)>|\\{\\|(.*?)\\|\\}|^ *\\*+|\\[\\[(?:([^\\]\\[]*)\\s*\\|\\s*)?([^\\]\\[]*)\\]\\])", Pattern.CASE_INSENSITIVE).matcher("");
+    /** Tokenizer for cached articles */
+    WhitespaceTokenizer cachedTokenizer;
 
-    /** Handler to send link detected events to. */
-    Handler handler;
+    /** Document, reused for every article */
+    Document doc = new Document();
+
+    /** Fields of the document */
+    Field titleField, linksField, textField;
+
+    /** Serialized links, in UTF-8 */
+    BytesRef linkBytes = new BytesRef(new byte[1 << 12]);
+
+    /** Shingles field, may be {@code null} */
+    Field shingleField;
+
+    /** Tokenizers for the shingles of new and of cached articles */
+    Tokenizer shingleTokenizer, cachedShingleTokenizer;
+
+    /** Shingle streams of new and of cached articles */
+    TokenStream shingleStream, cachedShingleStream;
+
+    /** Second reader, for the shingles */
+    FastStringReader shingleReader = new FastStringReader("");
 
     /**
      * Constructor
      *
      * @param handler Handlers for detected links.
+     * @param recorder Article cache, may be {@code null}
      * @throws IOException on errors opening the Lucene index
      */
-    public IndexHandler(Handler handler) {
+    public IndexHandler(Handler handler, ArticleCache.Recorder recorder) {
       Set<String> skip = new HashSet<>();
       skip.add(WikipediaTokenizer.EXTERNAL_LINK_URL);
       stream = tokenizer = new WikipediaTokenizer(WikipediaTokenizer.TOKENS_ONLY, skip);
       stream = new ClassicFilter(stream); // Removes 's etc
       stream = new LowerCaseFilter(stream);
+      if(recorder != null) {
+        stream = recording = new RecordingFilter(stream);
+        cachedTokenizer = new WhitespaceTokenizer();
+      }
       stream.addAttribute(CharTermAttribute.class);
-      this.handler = handler;
+      doc.add(titleField = new StringField(LUCENE_FIELD_TITLE, "", Field.Store.YES));
+      doc.add(linksField = linkDocValues ? new BinaryDocValuesField(LUCENE_FIELD_LINKS, linkBytes) : new StoredField(LUCENE_FIELD_LINKS, linkBytes));
+      doc.add(textField = new Field(LUCENE_FIELD_TEXT, stream, omitNorms ? LEAN_TEXT : TextField.TYPE_NOT_STORED));
+      if(shingles != null) {
+        // The same tokens as for the text field, from a second pass:
+        shingleTokenizer = new WikipediaTokenizer(WikipediaTokenizer.TOKENS_ONLY, skip);
+        shingleStream = shingles.filter(new LowerCaseFilter(new ClassicFilter(shingleTokenizer)));
+        if(recorder != null) {
+          cachedShingleTokenizer = new WhitespaceTokenizer();
+          cachedShingleStream = shingles.filter(cachedShingleTokenizer);
+        }
+        doc.add(shingleField = new Field(ShingleVocabulary.LUCENE_FIELD_SHINGLES, shingleStream, LEAN_TEXT));
+      }
+      this.handler = CharSequenceHandler.Adapter.of(handler);
+      this.recorder = recorder;
     }
 
-    StringBuilder buf = new StringBuilder();
+    /** Current article */
+    String prefix, title;
 
     FastStringReader reader = new FastStringReader("");
 
     @Override
     public void rawArticle(String prefix, String title, String intext) {
-      CharSequence text = intext;
-      // System.err.print(title + ": ");
-      stripBasics.reset(text);
-      text = stripBasics.replaceAll("");
-      for(int i = 0; i < 4; i++) {
-        stripTemplates.reset(text);
-        String text2 = stripTemplates.replaceAll("");
-        if(text2.equals(text))
-          break; // No more changes
-        text = text2;
-      }
-      { // Parse, and replace links with their text only:
-        buf.setLength(0); // clear
-        int pos = 0;
-        linkMatcher.reset(text);
-        while(linkMatcher.find()) {
-          buf.append(text, pos, linkMatcher.start());
-          String targ = linkMatcher.group(1);
-          if(targ == null || targ.length() == 0) {
-            buf.append(linkMatcher.group(2));
-            pos = linkMatcher.end();
-            continue; // Internal link.
-          }
-          targ = Util.normalizeLink(targ);
-          if(targ == null || targ.length() == 0) {
-            System.err.println(linkMatcher.group(0));
-            continue;
-          }
-          final String[] spl = targ.split(":");
-          String targl = spl.length > 0 ? spl[0].trim() : targ;
-          if(targ.charAt(0) == ':' || "file".equalsIgnoreCase(targl) || "wikisource".equalsIgnoreCase(targl) //
-          || "category".equalsIgnoreCase(targl) || "kategorie".equalsIgnoreCase(targl) //
-          || "catégorie".equalsIgnoreCase(targl) || "categoría".equalsIgnoreCase(targl) //
-          || "wikipedia".equalsIgnoreCase(targl) || "commons".equalsIgnoreCase(targl) || "image".equalsIgnoreCase(targl)//
-          || "fichier".equalsIgnoreCase(targl) || "datei".equalsIgnoreCase(targl) || "bild".equalsIgnoreCase(targl) //
-          || "archivo".equalsIgnoreCase(targl) || "imagen".equalsIgnoreCase(targl))
-            continue;
-          String labl = linkMatcher.group(2);
-          if(labl == null)
-            labl = targ;
-          labl = labl.replace('\n', ' ').trim();
-          targ = prefix + targ;
-          if(addLink(targ, labl))
-            handler.linkDetected(prefix, title, labl, targ);
-
-          buf.append(labl);
-          pos = linkMatcher.end();
-        }
-        buf.append(text, pos, text.length());
-        text = buf;
-      }
-      stripCruft.reset(text);
-      text = stripCruft.replaceAll(""); // Converts to string!
+      this.prefix = prefix;
+      this.title = title;
+      final long start = System.nanoTime();
+      // Replace links with their text, and strip most markup:
+      CharSequence text = lexer.process(intext, this);
+      final long mid = System.nanoTime();
+      slow.record(prefix, title, "lexer", mid - start);
 
       try {
-        Document doc = new Document();
-        doc.add(new StoredField(LUCENE_FIELD_TITLE, prefix + title));
-        doc.add(new StoredField(LUCENE_FIELD_LINKS, serializeLinks()));
+        final String key = prefix + title;
+        titleField.setStringValue(key);
+        linksField.setBytesValue(serializeLinks());
 
         tokenizer.reset();
         stream.reset();
         tokenizer.setReader(reader.reset(text));
-        doc.add(new TextField(LUCENE_FIELD_TEXT, stream));
-        index.addDocument(doc);
+        textField.setTokenStream(stream);
+        if(shingleField != null) {
+          shingleTokenizer.setReader(shingleReader.reset(text));
+          shingleField.setTokenStream(shingleStream);
+        }
+        if(recording != null)
+          recording.start(recorder.isRecording());
+        index(prefix, key, doc);
       }
       catch(IOException e) {
         e.printStackTrace();
         System.exit(1);
       }
+      slow.record(prefix, title, "index", System.nanoTime() - mid);
+      if(recording != null && recorder.isRecording())
+        recorder.record(title, linkList(), recording.buf);
       clearLinks();
 
       handler.rawArticle(prefix, title, intext);
     }
 
-    ArrayList<String> links = new ArrayList<>();
+    @Override
+    public void cachedArticle(String prefix, String title, String[] clinks, String tokens) {
+      for(int i = 0; i + 1 < clinks.length; i += 2)
+        if(addLink("", clinks[i], clinks[i + 1]))
+          handler.linkDetected(prefix, title, clinks[i + 1], clinks[i]);
+      try {
+        final String key = prefix + title;
+        titleField.setStringValue(key);
+        linksField.setBytesValue(serializeLinks());
+        cachedTokenizer.setReader(reader.reset(tokens));
+        textField.setTokenStream(cachedTokenizer);
+        if(shingleField != null) {
+          cachedShingleTokenizer.setReader(shingleReader.reset(tokens));
+          shingleField.setTokenStream(cachedShingleStream);
+        }
+        index(prefix, key, doc);
+      }
+      catch(IOException e) {
+        e.printStackTrace();
+        System.exit(1);
+      }
+      if(recorder.isRecording())
+        recorder.record(title, linkList(), tokens);
+      clearLinks();
+
+      handler.cachedArticle(prefix, title, clinks, tokens);
+    }
+
+    /**
+     * Add a document to the index, or replace the previous version when
+     * updating.
+     *
+     * @param prefix Prefix
+     * @param key Title, with prefix
+     * @param doc Document
+     * @throws IOException on errors
+     */
+    private void index(String prefix, String key, Document doc) throws IOException {
+      if(update == null) {
+        writer(prefix).addDocument(doc);
+        return;
+      }
+      update.touch(key);
+      writer(prefix).updateDocument(new Term(LUCENE_FIELD_TITLE, key), doc);
+    }
+
+    @Override
+    public void redirect(String prefix, String title, String redirect, String anchor) {
+      if(update == null)
+        return;
+      // The article may have been changed into a redirect:
+      update.touch(prefix + title);
+      try {
+        writer(prefix).deleteDocuments(new Term(LUCENE_FIELD_TITLE, prefix + title));
+      }
+      catch(IOException e) {
+        e.printStackTrace();
+        System.exit(1);
+      }
+      handler.redirect(prefix, title, redirect, anchor);
+    }
+
+    @Override
+    public void link(CharSequence target, CharSequence label) {
+      if(addLink(prefix, target, label)) {
+        final int n = (nlinks - 1) << 2;
+        handler.linkDetected(prefix, title, labelView.set(links, bounds[n + 2], bounds[n + 3]), //
+            targetView.set(links, bounds[n], bounds[n + 1]));
+      }
+    }
+
+    /** Links of the current article: targets and labels, separated by tabs */
+    char[] links = new char[1 << 12];
+
+    /** Used length of the links buffer */
+    int llen;
 
-    boolean addLink(String target, String label) {
-      // There won't be that many duplicates for a hash map to pay off
-      for(int i = 0, l = links.size(); i < l; i += 2) {
-        if(links.get(i).equals(target) && links.get(i + 1).equals(label)) {
-          return false; // Already in the document
+    /** Start and end of the target and label of each link, in links */
+    int[] bounds = new int[1 << 8];
+
+    /** Number of links */
+    int nlinks;
+
+    /** Hash table of the links, 1 + link number, 0 for empty slots */
+    int[] table = new int[1 << 7];
+
+    /** Hash code and slot in the table, of each link */
+    int[] hashes = new int[1 << 6], slots = new int[1 << 6];
+
+    /** Views of the link target and label, for the handlers */
+    CharSlice targetView = new CharSlice(), labelView = new CharSlice();
+
+    /**
+     * Add a link, unless already in the document.
+     *
+     * List-like pages have thousands of links, so we find duplicates with a
+     * hash table (which is cleared using the slots of the links only).
+     *
+     * @param tprefix Prefix of the target
+     * @param target Target
+     * @param label Label
+     * @return {@code true} if the link was added
+     */
+    boolean addLink(CharSequence tprefix, CharSequence target, CharSequence label) {
+      final int start = llen, n = nlinks << 2;
+      if(bounds.length < n + 4) {
+        bounds = Arrays.copyOf(bounds, bounds.length << 1);
+        hashes = Arrays.copyOf(hashes, bounds.length >> 2);
+        slots = Arrays.copyOf(slots, bounds.length >> 2);
+      }
+      final int need = llen + tprefix.length() + target.length() + label.length() + 2;
+      if(links.length < need)
+        links = Arrays.copyOf(links, Math.max(need, links.length << 1));
+      if(nlinks > 0)
+        links[llen++] = '\t';
+      bounds[n] = llen;
+      append(tprefix);
+      append(target);
+      bounds[n + 1] = llen;
+      links[llen++] = '\t';
+      bounds[n + 2] = llen;
+      append(label);
+      bounds[n + 3] = llen;
+      int h = 0;
+      for(int i = bounds[n]; i < llen; i++)
+        h = 31 * h + links[i];
+      h ^= h >>> 16;
+      final int mask = table.length - 1;
+      int slot = h & mask;
+      for(int k; (k = table[slot]) != 0; slot = (slot + 1) & mask) {
+        final int o = (k - 1) << 2;
+        if(hashes[k - 1] == h && regionEquals(bounds[o], bounds[o + 1], bounds[n], bounds[n + 1]) //
+            && regionEquals(bounds[o + 2], bounds[o + 3], bounds[n + 2], bounds[n + 3])) {
+          llen = start; // Already in the document
+          return false;
         }
       }
-      links.add(target);
-      links.add(label);
+      hashes[nlinks] = h;
+      slots[nlinks] = slot;
+      table[slot] = ++nlinks;
+      if(nlinks << 1 > table.length)
+        rehash(table.length << 1);
       return true;
     }
 
-    String serializeLinks() {
-      buf.setLength(0);
-      for(int i = 0; i < links.size(); i++) {
-        if(i > 0) {
-          buf.append('\t');
-        }
-        buf.append(links.get(i));
+    /**
+     * Grow the hash table.
+     *
+     * @param size New size, a power of two
+     */
+    private void rehash(int size) {
+      table = new int[size];
+      final int mask = size - 1;
+      for(int i = 0; i < nlinks; i++) {
+        int slot = hashes[i] & mask;
+        while(table[slot] != 0)
+          slot = (slot + 1) & mask;
+        table[slot] = i + 1;
+        slots[i] = slot;
       }
-      return buf.toString();
+    }
+
+    /**
+     * Append to the links buffer, which must be large enough.
+     *
+     * @param s Text
+     */
+    private void append(CharSequence s) {
+      final int l = s.length();
+      if(s instanceof String)
+        ((String) s).getChars(0, l, links, llen);
+      else if(s instanceof CharSlice)
+        System.arraycopy(((CharSlice) s).array(), ((CharSlice) s).offset(), links, llen, l);
+      else
+        for(int i = 0; i < l; i++)
+          links[llen + i] = s.charAt(i);
+      llen += l;
+    }
+
+    /**
+     * Compare two ranges of the links buffer.
+     *
+     * @param s1 Start of the first
+     * @param e1 End of the first
+     * @param s2 Start of the second
+     * @param e2 End of the second
+     * @return {@code true} if equal
+     */
+    private boolean regionEquals(int s1, int e1, int s2, int e2) {
+      if(e1 - s1 != e2 - s2)
+        return false;
+      for(; s1 < e1; s1++, s2++)
+        if(links[s1] != links[s2])
+          return false;
+      return true;
+    }
+
+    /**
+     * Serialize the links, in UTF-8.
+     *
+     * @return Reused buffer
+     */
+    BytesRef serializeLinks() {
+      final int max = llen * UnicodeUtil.MAX_UTF8_BYTES_PER_CHAR;
+      if(linkBytes.bytes.length < max)
+        linkBytes.bytes = new byte[ArrayUtil.oversize(max, 1)];
+      linkBytes.length = UnicodeUtil.UTF16toUTF8(links, 0, llen, linkBytes.bytes);
+      return linkBytes;
+    }
+
+    /**
+     * Get the targets and labels, for the article cache.
+     *
+     * @return Targets and labels, alternating
+     */
+    List<String> linkList() {
+      final int n = nlinks << 2;
+      ArrayList<String> list = new ArrayList<>(nlinks << 1);
+      for(int i = 0; i < n; i += 2)
+        list.add(new String(links, bounds[i], bounds[i + 1] - bounds[i]));
+      return list;
     }
 
     void clearLinks() {
-      links.clear();
+      for(int i = 0; i < nlinks; i++)
+        table[slots[i]] = 0;
+      llen = 0;
+      nlinks = 0;
     }
 
     @Override
@@ -224,9 +838,66 @@ public class LuceneWikipediaIndexer {
     }
   }
 
+  /**
+   * Token filter to record the indexed tokens, for the article cache.
+   *
+   * @author Erich Schubert
+   */
+  private static class RecordingFilter extends TokenFilter {
+    /** Lucene character term attribute */
+    CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+
+    /** Recorded tokens */
+    StringBuilder buf = new StringBuilder();
+
+    /** Recording enabled */
+    boolean enabled;
+
+    /**
+     * Constructor.
+     *
+     * @param input Input token stream
+     */
+    public RecordingFilter(TokenStream input) {
+      super(input);
+    }
+
+    /**
+     * Start recording the next document.
+     *
+     * @param enabled Record the tokens
+     */
+    void start(boolean enabled) {
+      this.enabled = enabled;
+      buf.setLength(0);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+      if(!input.incrementToken())
+        return false;
+      if(enabled) {
+        if(buf.length() > 0)
+          buf.append(' ');
+        buf.append(termAtt.buffer(), 0, termAtt.length());
+      }
+      return true;
+    }
+  }
+
   public void close() throws IOException {
     System.err.format("Closing %s output.\n", getClass().getSimpleName());
-    index.commit();
-    index.close();
+    for(IndexWriter w : writers()) {
+      if(segments > 0 && update == null) {
+        final long start = System.nanoTime();
+        w.getConfig().setMergePolicy(new TieredMergePolicy());
+        w.forceMerge(segments);
+        System.err.format("Merged the index into %d segments in %.1f s.\n", segments, (System.nanoTime() - start) * 1e-9);
+      }
+      w.setCommitData(Collections.<String, String> emptyMap());
+      w.commit();
+      w.close();
+    }
+    System.err.format("Index flushes: %s, merges: %s.\n", flushes, merges);
   }
 }
@@ -0,0 +1,292 @@
+package com.github.kno10.wikipediaentities;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Lightweight decoder for the {@code <page>} elements of a Wikipedia dump.
+ *
+ * Rather than building XML events for every element, we only locate the few
+ * elements we need within the raw UTF-8 bytes of a page, and only decode the
+ * text of pages in the main namespace. This relies on the very regular
+ * structure of the dumps: in particular, all markup within the text is
+ * escaped, so we will never see a {@code <} inside the element contents.
+ *
+ * This class is not thread-safe, use one instance per thread.
+ *
+ * @author Erich Schubert
+ */
+public class PageDecoder {
+  /** Element markers */
+  static final byte[] PAGE_START = bytes("<page>"), PAGE_END = bytes("</page>"), //
+      TITLE_START = bytes("<title>"), NS_START = bytes("<ns>"), //
+      REDIRECT_START = bytes("<redirect"), TITLE_ATTR = bytes("title=\""), //
+      TEXT_START = bytes("<text"), TEXT_END = bytes("</text>"), //
+      SHA1_START = bytes("<sha1>");
+
+  /** Buffer for unescaping */
+  private byte[] out = new byte[1 << 16];
+
+  /**
+   * Decode a single page.
+   *
+   * @param prefix Wiki prefix
+   * @param buf Buffer
+   * @param start Start of the page element
+   * @param end End of the page element
+   * @return Article, or {@code null} if the page is not a main namespace article
+   */
+  public Article decode(String prefix, byte[] buf, int start, int end) {
+    // Ignore non-main pages
+    int p = indexOf(buf, start, end, NS_START);
+    if(p >= 0 && !isZero(buf, p + NS_START.length, end))
+      return null;
+    String title = null, redirect = null;
+    byte[] text = null;
+    p = indexOf(buf, start, end, TITLE_START);
+    if(p >= 0) {
+      p += TITLE_START.length;
+      title = unescape(buf, p, find(buf, p, end, '<'), false);
+    }
+    // Text of the last revision
+    p = lastIndexOf(buf, start, end, TEXT_START);
+    if(p >= 0) {
+      int q = find(buf, p + TEXT_START.length, end, '>');
+      if(q > 0 && buf[q - 1] != '/') { // Not an empty element
+        q++;
+        int e = indexOf(buf, q, end, TEXT_END);
+        // Keep the text in UTF-8, it is decoded by the parser.
+        int o = unescapeBytes(buf, q, e >= 0 ? e : end, false);
+        text = o > 0 ? Arrays.copyOf(out, o) : null;
+      }
+    }
+    // The redirect element precedes the revisions.
+    p = indexOf(buf, start, p >= 0 ? p : end, REDIRECT_START);
+    if(p >= 0) {
+      int q = find(buf, p, end, '>');
+      p = indexOf(buf, p, q, TITLE_ATTR);
+      if(p >= 0) {
+        p += TITLE_ATTR.length;
+        redirect = unescape(buf, p, find(buf, p, end, '"'), true);
+      }
+    }
+    if(redirect == null && text == null && title != null) {
+      System.err.println("No redirect or text, but title: " + title);
+    }
+    if(title == null || text == null)
+      return null;
+    // Revision SHA1, which follows the text.
+    String sha1 = null;
+    p = lastIndexOf(buf, start, end, SHA1_START);
+    if(p >= 0) {
+      p += SHA1_START.length;
+      sha1 = unescape(buf, p, find(buf, p, end, '<'), false);
+    }
+    return new Article(prefix, title, redirect, text, sha1);
+  }
+
+  /**
+   * Test if the namespace element contains "0".
+   *
+   * @param buf Buffer
+   * @param p Start of the element contents
+   * @param end End of the page
+   * @return {@code true} for the main namespace
+   */
+  private static boolean isZero(byte[] buf, int p, int end) {
+    return p + 1 < end && buf[p] == '0' && buf[p + 1] == '<';
+  }
+
+  /**
+   * Decode XML entities, and convert to a string.
+   *
+   * @param buf Input buffer
+   * @param start Start position
+   * @param end End position
+   * @param attr Attribute value normalization (whitespace to spaces)
+   * @return Decoded string, {@code null} if empty.
+   */
+  private String unescape(byte[] buf, int start, int end, boolean attr) {
+    int o = unescapeBytes(buf, start, end, attr);
+    return o > 0 ? new String(out, 0, o, StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * Decode XML entities into the output buffer, keeping UTF-8 encoding.
+   *
+   * @param buf Input buffer
+   * @param start Start position
+   * @param end End position
+   * @param attr Attribute value normalization (whitespace to spaces)
+   * @return Length of the output
+   */
+  private int unescapeBytes(byte[] buf, int start, int end, boolean attr) {
+    if(end <= start)
+      return 0;
+    if(out.length < end - start)
+      out = new byte[(end - start) + ((end - start) >> 1)];
+    int o = 0;
+    for(int i = start; i < end; i++) {
+      byte b = buf[i];
+      if(b == '&') {
+        int semi = find(buf, i + 1, Math.min(end, i + 12), ';');
+        if(semi > 0) {
+          int c = entity(buf, i + 1, semi);
+          if(c >= 0) {
+            o = encode(c, o);
+            i = semi;
+            continue;
+          }
+        }
+      }
+      else if(b == '\r') { // XML line end normalization
+        if(i + 1 < end && buf[i + 1] == '\n')
+          continue;
+        b = '\n';
+      }
+      if(attr && (b == '\n' || b == '\t'))
+        b = ' ';
+      out[o++] = b;
+    }
+    return o;
+  }
+
+  /**
+   * Decode an XML entity.
+   *
+   * @param buf Buffer
+   * @param s Start (after the ampersand)
+   * @param e End (the semicolon)
+   * @return Code point, or -1
+   */
+  private static int entity(byte[] buf, int s, int e) {
+    final int l = e - s;
+    if(l < 2)
+      return -1;
+    if(buf[s] == '#') {
+      int c = 0;
+      if(buf[s + 1] == 'x' || buf[s + 1] == 'X') {
+        for(int i = s + 2; i < e; i++) {
+          int d = Character.digit(buf[i], 16);
+          if(d < 0)
+            return -1;
+          c = (c << 4) + d;
+        }
+        return l > 2 ? c : -1;
+      }
+      for(int i = s + 1; i < e; i++) {
+        if(buf[i] < '0' || buf[i] > '9')
+          return -1;
+        c = c * 10 + (buf[i] - '0');
+      }
+      return c;
+    }
+    if(l == 2 && buf[s + 1] == 't')
+      return buf[s] == 'l' ? '<' : buf[s] == 'g' ? '>' : -1;
+    if(l == 3 && buf[s] == 'a' && buf[s + 1] == 'm' && buf[s + 2] == 'p')
+      return '&';
+    if(l == 4 && buf[s] == 'q' && buf[s + 1] == 'u' && buf[s + 2] == 'o' && buf[s + 3] == 't')
+      return '"';
+    if(l == 4 && buf[s] == 'a' && buf[s + 1] == 'p' && buf[s + 2] == 'o' && buf[s + 3] == 's')
+      return '\'';
+    return -1;
+  }
+
+  /**
+   * Append a code point in UTF-8 encoding to the output buffer.
+   *
+   * @param c Code point
+   * @param o Output position
+   * @return New output position
+   */
+  private int encode(int c, int o) {
+    if(c < 0x80)
+      out[o++] = (byte) c;
+    else if(c < 0x800) {
+      out[o++] = (byte) (0xC0 | (c >> 6));
+      out[o++] = (byte) (0x80 | (c & 0x3F));
+    }
+    else if(c < 0x10000) {
+      out[o++] = (byte) (0xE0 | (c >> 12));
+      out[o++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      out[o++] = (byte) (0x80 | (c & 0x3F));
+    }
+    else {
+      out[o++] = (byte) (0xF0 | (c >> 18));
+      out[o++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+      out[o++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      out[o++] = (byte) (0x80 | (c & 0x3F));
+    }
+    return o;
+  }
+
+  /**
+   * Find a single byte.
+   *
+   * @param buf Buffer
+   * @param start Start position
+   * @param end End position
+   * @param b Byte to find
+   * @return Position, or -1
+   */
+  static int find(byte[] buf, int start, int end, char b) {
+    for(int i = start; i < end; i++)
+      if(buf[i] == b)
+        return i;
+    return -1;
+  }
+
+  /**
+   * Find a byte pattern.
+   *
+   * @param buf Buffer
+   * @param start Start position
+   * @param end End position
+   * @param pat Pattern to find
+   * @return Position of the first match, or -1
+   */
+  static int indexOf(byte[] buf, int start, int end, byte[] pat) {
+    final byte first = pat[0];
+    outer: for(int i = start, last = end - pat.length; i <= last; i++) {
+      if(buf[i] != first)
+        continue;
+      for(int j = 1; j < pat.length; j++)
+        if(buf[i + j] != pat[j])
+          continue outer;
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Find the last occurrence of a byte pattern.
+   *
+   * @param buf Buffer
+   * @param start Start position
+   * @param end End position
+   * @param pat Pattern to find
+   * @return Position of the last match, or -1
+   */
+  static int lastIndexOf(byte[] buf, int start, int end, byte[] pat) {
+    final byte first = pat[0];
+    outer: for(int i = end - pat.length; i >= start; i--) {
+      if(buf[i] != first)
+        continue;
+      for(int j = 1; j < pat.length; j++)
+        if(buf[i + j] != pat[j])
+          continue outer;
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Get the bytes of an ASCII string.
+   *
+   * @param s String
+   * @return Bytes
+   */
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+}
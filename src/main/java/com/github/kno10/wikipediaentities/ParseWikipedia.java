@@ -3,11 +3,17 @@ package com.github.kno10.wikipediaentities;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,7 +24,12 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
+import com.github.kno10.wikipediaentities.util.Autotuner;
+import com.github.kno10.wikipediaentities.util.BatchQueue;
+import com.github.kno10.wikipediaentities.util.BudgetCharSequence;
+import com.github.kno10.wikipediaentities.util.EntityDecoder;
 import com.github.kno10.wikipediaentities.util.Progress;
+import com.github.kno10.wikipediaentities.util.SlowArticles;
 import com.github.kno10.wikipediaentities.util.Util;
 
 /**
@@ -27,8 +38,6 @@ import com.github.kno10.wikipediaentities.util.Util;
  * @author Erich Schubert
  */
 public class ParseWikipedia {
-  int readers = 0;
-
   Progress readprog = new Progress("Reading articles");
 
   Progress parseprog = new Progress("Parsing articles");
@@ -36,11 +45,59 @@ public class ParseWikipedia {
   /** Title attribute for redirects */
   static final QName TITLEQNAME = new QName("title");
 
+  /** Number of decompression threads per input file */
+  int decompressors;
+
+  /** Number of page decoding threads per input file, 0 to use StAX */
+  int decoders;
+
+  /** Size of the chunks handed to the page decoders */
+  static final int CHUNK_SIZE = 4 << 20;
+
+  /** Size of the memory mapped windows of uncompressed input files */
+  static final long WINDOW_SIZE = 32 << 20;
+
+  /** Number of articles handed to the parsers at once */
+  static final int BATCH_SIZE = 64;
+
+  /** Checkpoint coordination */
+  Checkpoint checkpoint;
+
+  /** Pool of parser threads, may be {@code null} */
+  Autotuner.Pool parsers;
+
+  /** Number of parser threads */
+  int numparsers = 0;
+
+  /** Report of the slowest articles */
+  SlowArticles slow = new SlowArticles(0);
+
+  /** Time budget for regular expressions on a single article, in ns */
+  long budget = 0;
+
+  /** An input was not read completely, because decoding failed */
+  volatile boolean failed = false;
+
   /**
    * Constructor.
    */
   public ParseWikipedia() {
+    this(1, 0, new Checkpoint());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param decompressors Number of decompression threads per input file
+   * @param decoders Number of page decoding threads per input file, 0 to use
+   *        the StAX parser.
+   * @param checkpoint Checkpoint coordination
+   */
+  public ParseWikipedia(int decompressors, int decoders, Checkpoint checkpoint) {
     super();
+    this.decompressors = decompressors;
+    this.decoders = decoders;
+    this.checkpoint = checkpoint;
   }
 
   /**
@@ -51,9 +108,30 @@ public class ParseWikipedia {
    * @param queue Processing queue
    * @return reader thread
    */
-  public synchronized Thread makeReaderThread(String fname, String prefix, BlockingQueue<Article> queue) {
-    ++readers;
-    return new ReaderThread(fname, prefix, queue);
+  public Thread makeReaderThread(String fname, String prefix, BatchQueue<Article> queue) {
+    // Register as producer now, before any parser can see the end of the queue.
+    BatchQueue<Article>.Producer out = queue.producer();
+    if(decoders > 0 && fname.endsWith(".xml"))
+      return new MappedReaderThread(fname, prefix, queue, out);
+    if(decoders > 0)
+      return new SplittingReaderThread(fname, prefix, queue, out);
+    return new ReaderThread(fname, prefix, out);
+  }
+
+  /**
+   * Close the output of a reader, after it has finished.
+   *
+   * @param out Output of the reader
+   */
+  void closeReader(BatchQueue<Article>.Producer out) {
+    // Update max, for progress logging.
+    parseprog.setMax(readprog.get());
+    try {
+      out.close();
+    }
+    catch(InterruptedException e) {
+      System.err.println("Processing interrupted.");
+    }
   }
 
   /**
@@ -68,8 +146,8 @@ public class ParseWikipedia {
     /** Naming prefix */
     private String prefix;
 
-    /** Classes to process articles */
-    protected BlockingQueue<Article> queue;
+    /** Output of articles to process */
+    protected BatchQueue<Article>.Producer out;
 
     /** String buffer */
     StringBuilder buf = new StringBuilder();
@@ -79,30 +157,42 @@ public class ParseWikipedia {
      *
      * @param fname Source file name
      * @param prefix Prefix
-     * @param queue Queue to output articles to
+     * @param out Output of articles to process
      */
-    public ReaderThread(String fname, String prefix, BlockingQueue<Article> queue) {
+    public ReaderThread(String fname, String prefix, BatchQueue<Article>.Producer out) {
       this.fname = fname;
       this.prefix = prefix;
-      this.queue = queue;
+      this.out = out;
     }
 
     @Override
     public void run() {
       final XMLInputFactory factory = XMLInputFactory.newInstance();
-      try (InputStream fin2 = Util.openInput(fname)) {
+      final long skip = checkpoint.register(fname, "pages");
+      long pages = 0;
+      boolean complete = false;
+      try (InputStream fin2 = Util.openInput(fname, decompressors)) {
         XMLEventReader eventReader = factory.createXMLEventReader(fin2, "UTF-8");
 
-        while(eventReader.hasNext()) {
+        while(skip < Long.MAX_VALUE && eventReader.hasNext()) {
           XMLEvent event = eventReader.nextEvent();
           if(event.isStartElement()) {
             StartElement startElement = event.asStartElement();
             if(startElement.getName().getLocalPart() == "page") {
-              parsePage(eventReader);
+              if(pages < skip) // Resuming from a checkpoint
+                skipPage(eventReader);
+              else
+                parsePage(eventReader);
+              ++pages;
+              if(checkpoint.isRequested()) {
+                out.flush(); // Buffered articles must be processed first.
+                checkpoint.pause(fname, "pages", pages);
+              }
               // if (readprog.get() == 10000) break;
             }
           }
         }
+        complete = true;
       }
       catch(IOException | XMLStreamException e) {
         throw new RuntimeException(e);
@@ -111,18 +201,13 @@ public class ParseWikipedia {
         System.err.println("Processing interrupted.");
       }
       finally {
-        // Update max, for progress logging.
-        parseprog.setMax(readprog.get());
-
-        // We've finished adding to the queue. Wait for shutdown.
-        synchronized(ParseWikipedia.this) {
-          --readers;
-        }
+        checkpoint.finished(fname, complete ? Checkpoint.DONE : "pages:" + pages);
+        closeReader(out);
       }
     }
 
     private void parsePage(XMLEventReader eventReader) throws XMLStreamException, InterruptedException {
-      String title = null, text = null, redirect = null;
+      String title = null, text = null, redirect = null, sha1 = null;
       boolean skip = false;
       while(eventReader.hasNext()) {
         XMLEvent event = eventReader.nextEvent();
@@ -143,6 +228,9 @@ public class ParseWikipedia {
 
           if(startElement.getName().getLocalPart() == "redirect")
             redirect = startElement.getAttributeByName(TITLEQNAME).getValue();
+
+          if(startElement.getName().getLocalPart() == "sha1")
+            sha1 = parseTextContents(eventReader);
         }
       }
       // Post-process page.
@@ -151,10 +239,20 @@ public class ParseWikipedia {
       // Ignore non-main pages
       if(skip || title == null || text == null)
         return;
-      queue.put(new Article(prefix, title, redirect, text));
+      checkpoint.handoff();
+      Article a = new Article(prefix, title, redirect, text, sha1);
+      out.put(a, a.size());
       readprog.incrementAndLog();
     }
 
+    private void skipPage(XMLEventReader eventReader) throws XMLStreamException {
+      while(eventReader.hasNext()) {
+        XMLEvent event = eventReader.nextEvent();
+        if(event.isEndElement() && event.asEndElement().getName().getLocalPart() == "page")
+          break;
+      }
+    }
+
     private String parseTextContents(XMLEventReader eventReader) throws XMLStreamException {
       // Chances are that we'll only need one string.
       String ret = null;
@@ -181,8 +279,456 @@ public class ParseWikipedia {
 
   }
 
-  public Thread makeParserThread(BlockingQueue<Article> q, Handler h) {
-    return new WikipediaParserThread(q, h);
+  /**
+   * Thread for reading Wikipedia articles, without a full XML parser.
+   *
+   * We only split the input into chunks of complete pages; the pages are then
+   * decoded in parallel by {@link PageDecoderThread}s.
+   *
+   * @author Erich Schubert
+   */
+  private class SplittingReaderThread extends Thread {
+    /** Input file name. */
+    private String fname;
+
+    /** Naming prefix */
+    private String prefix;
+
+    /** Queue of articles to process */
+    protected BatchQueue<Article> queue;
+
+    /** Output of this reader, closed after all decoders have finished */
+    protected BatchQueue<Article>.Producer out;
+
+    /** First failure of a decoder */
+    private volatile Throwable failure;
+
+    /**
+     * Constructor.
+     *
+     * @param fname Source file name
+     * @param prefix Prefix
+     * @param queue Queue to output articles to
+     * @param out Output of this reader
+     */
+    public SplittingReaderThread(String fname, String prefix, BatchQueue<Article> queue, BatchQueue<Article>.Producer out) {
+      this.fname = fname;
+      this.prefix = prefix;
+      this.queue = queue;
+      this.out = out;
+    }
+
+    @Override
+    public void run() {
+      BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(decoders << 1);
+      List<Thread> threads = new ArrayList<>(decoders);
+      for(int i = 0; i < decoders; i++) {
+        Thread t = new PageDecoderThread(this, chunks, queue.producer());
+        threads.add(t);
+        t.start();
+      }
+      final long skip = checkpoint.register(fname, "bytes");
+      long offset = 0;
+      boolean complete = false;
+      try (InputStream in = Util.openInput(fname, decompressors)) {
+        // Resuming from a checkpoint:
+        for(long r; offset < skip && skip < Long.MAX_VALUE; offset += r)
+          if((r = in.skip(skip - offset)) <= 0)
+            break;
+        byte[] buf = new byte[CHUNK_SIZE];
+        int len = 0;
+        while(skip < Long.MAX_VALUE && failure == null) {
+          int r = in.read(buf, len, buf.length - len);
+          if(r < 0) {
+            if(len > 0) {
+              checkpoint.handoff();
+              chunks.put(new Chunk(buf, len));
+              offset += len;
+            }
+            break;
+          }
+          len += r;
+          if(len < buf.length)
+            continue;
+          // Hand off all complete pages:
+          int end = PageDecoder.lastIndexOf(buf, 0, len, PageDecoder.PAGE_END);
+          if(end < 0) { // Grow, for exceptionally large pages.
+            buf = Arrays.copyOf(buf, buf.length << 1);
+            continue;
+          }
+          end += PageDecoder.PAGE_END.length;
+          byte[] next = new byte[Math.max(CHUNK_SIZE, (len - end) << 1)];
+          System.arraycopy(buf, end, next, 0, len - end);
+          checkpoint.handoff();
+          chunks.put(new Chunk(buf, end));
+          offset += end;
+          buf = next;
+          len -= end;
+          checkpoint.pause(fname, "bytes", offset);
+        }
+        complete = failure == null;
+      }
+      catch(IOException e) {
+        throw new RuntimeException(e);
+      }
+      catch(InterruptedException e) {
+        System.err.println("Processing interrupted.");
+      }
+      finally {
+        checkpoint.finished(fname, complete ? Checkpoint.DONE : "bytes:" + offset);
+        try {
+          // Signal the end of the input to each decoder, and wait for them.
+          for(int i = 0; i < decoders; i++)
+            chunks.put(Chunk.END);
+          for(Thread t : threads)
+            t.join();
+        }
+        catch(InterruptedException e) {
+          System.err.println("Processing interrupted.");
+        }
+        closeReader(out);
+      }
+      if(failure != null) {
+        failed = true;
+        throw new IllegalStateException("Decoding failed, " + fname + " was not read completely.", failure);
+      }
+    }
+
+    /**
+     * Record the failure of a decoder, to stop reading.
+     *
+     * @param e Failure
+     */
+    void fail(Throwable e) {
+      if(failure == null)
+        failure = e;
+    }
+  }
+
+  /**
+   * A chunk of raw input, containing complete pages only.
+   *
+   * @author Erich Schubert
+   */
+  private static class Chunk {
+    /** End of input marker */
+    static final Chunk END = new Chunk(new byte[0], 0);
+
+    /** Data buffer */
+    byte[] buf;
+
+    /** Valid length */
+    int len;
+
+    /**
+     * Constructor.
+     *
+     * @param buf Data buffer
+     * @param len Valid length
+     */
+    Chunk(byte[] buf, int len) {
+      this.buf = buf;
+      this.len = len;
+    }
+  }
+
+  /**
+   * Thread for decoding the pages within raw input chunks.
+   *
+   * @author Erich Schubert
+   */
+  private class PageDecoderThread extends Thread {
+    /** Reader */
+    private SplittingReaderThread reader;
+
+    /** Input chunks */
+    private BlockingQueue<Chunk> chunks;
+
+    /** Output of articles to process */
+    private BatchQueue<Article>.Producer out;
+
+    /** Page decoder */
+    private PageDecoder decoder = new PageDecoder();
+
+    /**
+     * Constructor.
+     *
+     * @param reader Reader, to report failures to
+     * @param chunks Input chunks
+     * @param out Output of articles to process
+     */
+    public PageDecoderThread(SplittingReaderThread reader, BlockingQueue<Chunk> chunks, BatchQueue<Article>.Producer out) {
+      this.reader = reader;
+      this.chunks = chunks;
+      this.out = out;
+    }
+
+    @Override
+    public void run() {
+      try {
+        Chunk c;
+        while((c = chunks.take()) != Chunk.END) {
+          try {
+            // After a failure, only drain the chunks, until the reader stops.
+            if(reader.failure == null)
+              decodePages(decoder, reader.prefix, c.buf, c.len, out);
+          }
+          catch(RuntimeException | Error e) {
+            reader.fail(e);
+          }
+          finally {
+            checkpoint.done();
+          }
+        }
+      }
+      catch(InterruptedException e) {
+        System.err.println("Processing interrupted.");
+      }
+      finally {
+        closeReader(out);
+      }
+    }
+  }
+
+  public Thread makeParserThread(BatchQueue<Article> q, Handler h) {
+    return new WikipediaParserThread(numparsers++, q, h, null);
+  }
+
+  public Thread makeParserThread(BatchQueue<Article> q, Handler h, ArticleCache.Recorder recorder) {
+    return new WikipediaParserThread(numparsers++, q, h, recorder);
+  }
+
+  /**
+   * Decode all pages within a buffer.
+   *
+   * The decoded articles are handed off before returning, so that the buffer
+   * can be marked as done for checkpointing.
+   *
+   * @param decoder Page decoder
+   * @param prefix Prefix
+   * @param buf Buffer, containing complete pages only
+   * @param len Valid length of the buffer
+   * @param out Output of articles to process
+   * @throws InterruptedException When interrupted
+   */
+  void decodePages(PageDecoder decoder, String prefix, byte[] buf, int len, BatchQueue<Article>.Producer out) throws InterruptedException {
+    for(int pos = 0; (pos = PageDecoder.indexOf(buf, pos, len, PageDecoder.PAGE_START)) >= 0;) {
+      int end = PageDecoder.indexOf(buf, pos, len, PageDecoder.PAGE_END);
+      end = end < 0 ? len : end;
+      Article a = decoder.decode(prefix, buf, pos, end);
+      pos = end;
+      if(a != null) {
+        checkpoint.handoff();
+        out.put(a, a.size());
+        readprog.incrementAndLog();
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Thread for reading an uncompressed Wikipedia dump using memory mapping.
+   *
+   * The file is split into large windows at page boundaries, and the windows
+   * are processed by multiple {@link MappedDecoderThread}s at once.
+   *
+   * @author Erich Schubert
+   */
+  private class MappedReaderThread extends Thread {
+    /** Input file name. */
+    private String fname;
+
+    /** Naming prefix */
+    private String prefix;
+
+    /** Queue of articles to process */
+    protected BatchQueue<Article> queue;
+
+    /** Output of this reader, closed after all decoders have finished */
+    protected BatchQueue<Article>.Producer out;
+
+    /** Input channel */
+    private FileChannel channel;
+
+    /** File size, and start of the next window */
+    private long size, next = 0;
+
+    /** First failure of a decoder */
+    private volatile Throwable failure;
+
+    /**
+     * Constructor.
+     *
+     * @param fname Source file name
+     * @param prefix Prefix
+     * @param queue Queue to output articles to
+     * @param out Output of this reader
+     */
+    public MappedReaderThread(String fname, String prefix, BatchQueue<Article> queue, BatchQueue<Article>.Producer out) {
+      this.fname = fname;
+      this.prefix = prefix;
+      this.queue = queue;
+      this.out = out;
+    }
+
+    @Override
+    public void run() {
+      boolean complete = false;
+      try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+        this.channel = channel;
+        this.size = channel.size();
+        this.next = Math.min(size, checkpoint.register(fname, "bytes"));
+        List<Thread> threads = new ArrayList<>(decoders);
+        for(int i = 0; i < decoders; i++) {
+          Thread t = new MappedDecoderThread(this, queue.producer());
+          threads.add(t);
+          t.start();
+        }
+        for(Thread t : threads)
+          t.join();
+        complete = failure == null;
+      }
+      catch(IOException e) {
+        throw new RuntimeException(e);
+      }
+      catch(InterruptedException e) {
+        System.err.println("Processing interrupted.");
+      }
+      finally {
+        checkpoint.finished(fname, complete ? Checkpoint.DONE : "bytes:" + next);
+        closeReader(out);
+      }
+      if(failure != null) {
+        failed = true;
+        throw new IllegalStateException("Decoding failed, " + fname + " was not read completely.", failure);
+      }
+    }
+
+    /**
+     * Record the failure of a decoder, to stop reading.
+     *
+     * @param e Failure
+     */
+    void fail(Throwable e) {
+      if(failure == null)
+        failure = e;
+    }
+
+    /**
+     * Get the next window to process, ending at a page boundary.
+     *
+     * @return Mapped window, or {@code null} when done.
+     * @throws IOException on errors
+     * @throws InterruptedException When interrupted
+     */
+    synchronized MappedByteBuffer nextWindow() throws IOException, InterruptedException {
+      checkpoint.pause(fname, "bytes", next);
+      if(next >= size || failure != null)
+        return null;
+      final long start = next;
+      long end = start + WINDOW_SIZE;
+      if(end >= size)
+        end = size;
+      else { // Find the next page start
+        for(long l = 1 << 20;; l <<= 1) {
+          final long wend = Math.min(size, end + l);
+          MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, end, wend - end);
+          int p = indexOf(b, PageDecoder.PAGE_START);
+          if(p >= 0) {
+            end += p;
+            break;
+          }
+          if(wend == size) {
+            end = size;
+            break;
+          }
+        }
+      }
+      next = end;
+      checkpoint.handoff();
+      return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+  }
+
+  /**
+   * Find a byte pattern in a buffer.
+   *
+   * @param b Buffer
+   * @param pat Pattern
+   * @return Position, or -1
+   */
+  private static int indexOf(ByteBuffer b, byte[] pat) {
+    final byte first = pat[0];
+    outer: for(int i = 0, last = b.limit() - pat.length; i <= last; i++) {
+      if(b.get(i) != first)
+        continue;
+      for(int j = 1; j < pat.length; j++)
+        if(b.get(i + j) != pat[j])
+          continue outer;
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Thread for decoding the pages within mapped windows of the input.
+   *
+   * @author Erich Schubert
+   */
+  private class MappedDecoderThread extends Thread {
+    /** Reader */
+    private MappedReaderThread reader;
+
+    /** Output of articles to process */
+    private BatchQueue<Article>.Producer out;
+
+    /** Page decoder */
+    private PageDecoder decoder = new PageDecoder();
+
+    /** Buffer for the current window */
+    private byte[] buf = new byte[0];
+
+    /**
+     * Constructor.
+     *
+     * @param reader Reader to get windows from
+     * @param out Output of articles to process
+     */
+    public MappedDecoderThread(MappedReaderThread reader, BatchQueue<Article>.Producer out) {
+      this.reader = reader;
+      this.out = out;
+    }
+
+    @Override
+    public void run() {
+      try {
+        MappedByteBuffer window;
+        while((window = reader.nextWindow()) != null) {
+          final int len = window.remaining();
+          if(buf.length < len)
+            buf = new byte[len];
+          window.get(buf, 0, len);
+          try {
+            decodePages(decoder, reader.prefix, buf, len, out);
+          }
+          catch(RuntimeException | Error e) {
+            reader.fail(e);
+          }
+          finally {
+            checkpoint.done();
+          }
+        }
+      }
+      catch(IOException e) {
+        throw new RuntimeException(e);
+      }
+      catch(InterruptedException e) {
+        System.err.println("Processing interrupted.");
+      }
+      finally {
+        closeReader(out);
+      }
+    }
   }
 
   /**
@@ -191,66 +737,123 @@ public class ParseWikipedia {
    * @author Erich Schubert
    */
   private class WikipediaParserThread extends Thread {
-    BlockingQueue<Article> queue;
+    BatchQueue<Article> queue;
 
     Handler handler;
 
+    /** Article cache, may be {@code null} */
+    ArticleCache.Recorder recorder;
+
+    /** Parser number */
+    int num;
+
+    /** Decoder for entities and special characters */
+    EntityDecoder decoder = new EntityDecoder();
+
+    /** Redirect text, with a time budget for the pattern */
+    private BudgetCharSequence budgeted = new BudgetCharSequence();
+
     /** Pattern for recognizing redirects */
     private Matcher redirmatcher = Pattern.compile("#(?:REDIRECT|WEITERLEITUNG|REDIRECCI[oOÓó]N|REDIRECTION)[:,\\s]*\\[\\[\\s*([^\\]\\[\\|#]*?)(?:#\\s*(.*?)\\s*)?(?:\\s*\\|\\s*[^\\]\\[]*)?\\s*\\]\\]", Pattern.CASE_INSENSITIVE).matcher("");
 
     /**
      * Constructor.
      *
+     * @param num Parser number
      * @param q Queue
      * @param h Handler
+     * @param recorder Article cache, may be {@code null}
      */
-    public WikipediaParserThread(BlockingQueue<Article> q, Handler h) {
+    public WikipediaParserThread(int num, BatchQueue<Article> q, Handler h, ArticleCache.Recorder recorder) {
+      this.num = num;
       this.queue = q;
       this.handler = h;
+      this.recorder = recorder;
     }
 
     @Override
     public void run() {
-      while(!queue.isEmpty() || readers > 0) {
-        try {
-          Article a = queue.poll(100, TimeUnit.MILLISECONDS);
-          if(a == null)
-            continue;
-          process(a);
-          parseprog.incrementAndLog();
-        }
-        catch(InterruptedException e) {
-          break;
+      try {
+        while(true) {
+          if(parsers != null)
+            parsers.await(num);
+          BatchQueue.Batch<Article> batch = queue.take();
+          if(batch == null)
+            break;
+          final long start = System.nanoTime();
+          try {
+            for(Article a : batch) {
+              try {
+                process(a);
+              }
+              finally {
+                checkpoint.done();
+              }
+              parseprog.incrementAndLog();
+            }
+          }
+          finally {
+            queue.release(batch);
+            if(parsers != null)
+              parsers.busy(System.nanoTime() - start);
+          }
         }
       }
+      catch(InterruptedException e) {
+        System.err.println("Processing interrupted.");
+      }
+      if(parsers != null)
+        parsers.finish(); // Let parked parsers finish, too.
       // System.err.println("Parser thread has completed.");
+      try {
+        checkpoint.closing();
+      }
+      catch(InterruptedException e) {
+        System.err.println("Processing interrupted.");
+      }
       handler.close();
     }
 
     private void process(Article a) {
-      String title = Util.removeEntities(a.title);
+      // Unchanged since the previous run:
+      if(recorder != null && recorder.lookup(a.prefix, a.title, a.sha1)) {
+        handler.cachedArticle(a.prefix, recorder.title, recorder.links, recorder.tokens);
+        return;
+      }
+      final long start = System.nanoTime();
+      String title = decoder.decode(a.title);
       // Skip boring "list of" pages
       if(title.startsWith("List ") || title.startsWith("Liste ") || title.startsWith("Anexo:"))
         return;
-      String text = Util.removeEntities(a.rawtext);
+      String text = a.rawtext();
+      a.text = null; // Free early, the batch is kept until all are processed.
       if(a.redirect != null) {
-        redirmatcher.reset(text);
-        String anchor = "", redirect;
-        if(redirmatcher.find()) {
-          String g1 = redirmatcher.group(1);
-          redirect = Util.normalizeLink(g1);
-          anchor = redirmatcher.group(2);
+        text = decoder.decode(text);
+        String anchor = "", redirect = null;
+        try {
+          redirmatcher.reset(budgeted.reset(text, budget));
+          if(redirmatcher.find()) {
+            String g1 = redirmatcher.group(1);
+            redirect = Util.normalizeLink(g1);
+            anchor = redirmatcher.group(2);
+          }
+          else
+            System.err.println("No redirect in " + title + ": " + text);
         }
-        else {
-          redirect = Util.removeEntities(a.redirect);
+        catch(BudgetCharSequence.Expired e) {
+          slow.aborted(a.prefix, title, "redirect");
+        }
+        if(redirect == null) { // Use the redirect title given in the dump
+          redirect = decoder.decode(a.redirect);
           redirect = Util.normalizeLink(redirect);
-          System.err.println("No redirect in " + title + ": " + text);
         }
+        slow.record(a.prefix, title, "redirect", System.nanoTime() - start);
         handler.redirect(a.prefix, title, redirect, anchor);
         return;
       }
       // Note: removing some of these too early will break redirects!
-      text = Util.removeSpecial(text);
+      text = decoder.decodeAndNormalize(text);
+      slow.record(a.prefix, title, "decode", System.nanoTime() - start);
       handler.rawArticle(a.prefix, title, text);
     }
   }
@@ -261,57 +864,210 @@ public class ParseWikipedia {
    * @param args Command line attributes
    */
   public static void main(String[] args) {
-    int par = Math.min(Integer.valueOf(Config.get("parallelism")), Runtime.getRuntime().availableProcessors());
+    final int cpus = Runtime.getRuntime().availableProcessors();
+    int par = Math.min(Integer.valueOf(Config.get("parallelism")), cpus);
     if(par < 1) {
       throw new Error("At least 1 consumer must be allowed!");
     }
+    // Adjust the number of active threads, within [1;max]:
+    final int tune = Config.getInt("autotune.interval", 0);
+    final int parmax = tune > 0 ? Math.max(par, Config.getInt("parallelism.max", par)) : par;
+    boolean resume = args.length > 0 && "--resume".equals(args[0]);
+    boolean incremental = args.length > 0 && "--update".equals(args[0]);
     LuceneWikipediaIndexer indexer = null;
     try {
       List<Thread> threads = new ArrayList<>();
 
-      BlockingQueue<Article> q1 = new ArrayBlockingQueue<>(100);
-      ParseWikipedia l = new ParseWikipedia();
+      final String dir = Config.get("indexer.dir");
+      final boolean sharded = Config.getBoolean("indexer.shards", false);
+      IncrementalUpdate update = incremental ? new IncrementalUpdate(dir, sharded) : null;
+      indexer = new LuceneWikipediaIndexer(dir, resume, update, Config.get("indexer.profile", LuceneWikipediaIndexer.PROFILE_DEFAULT), sharded);
+      String shingles = Config.get("indexer.shingles", "");
+      if(!shingles.isEmpty())
+        indexer.setShingles(new ShingleVocabulary(shingles));
+      indexer.setBulkBuild(Config.getInt("indexer.ram.megabytes", 0), Config.getInt("indexer.segments", 0), Config.getInt("indexer.merge.threads", 0));
+      ArticleCache cache = new ArticleCache(Config.get("cache.input"), Config.get("cache.output"), resume);
+      Checkpoint cp = resume ? new Checkpoint(indexer.getCommitData()) : new Checkpoint();
+      int gen = cp.getGeneration();
+      if(resume && gen == 0) {
+        System.err.println("No checkpoint found in " + dir);
+        System.exit(1);
+      }
+
+      BatchQueue<Article> q1 = new BatchQueue<>(par << 1, BATCH_SIZE, Config.getInt("loader.queue.megabytes", 256) * (1L << 20));
+      ParseWikipedia l = new ParseWikipedia(Config.getInt("loader.decompressors", 1), Config.getInt("loader.decoders", 0), cp);
+      l.slow = new SlowArticles(Config.getInt("report.slowest", 0));
+      l.budget = Config.getInt("parser.budget.ms", 0) * 1000000L;
+      indexer.setSlowArticles(l.slow);
       // Start the reader:
-      for(String s : Config.get("loader.source").split(",")) {
+      for(String s : Config.get(incremental ? "update.source" : "loader.source").split(",")) {
         String p = new File(s).getName().split("-")[0] + ":";
         Thread reader = l.makeReaderThread(s, p, q1);
         threads.add(reader);
       }
-      RedirectCollector r = new RedirectCollector(Config.get("redirects.output"));
-      indexer = new LuceneWikipediaIndexer(Config.get("indexer.dir"));
-      LinkCollector lc = new LinkCollector(Config.get("links.output"));
-      LuceneLinkTokenizer lt = new LuceneLinkTokenizer(Config.get("linktext.output"));
-      System.err.println("Starting " + par + " worker threads.");
-      for(int i = 0; i < par; i++) {
-        HandlerList h = new HandlerList(), h2 = new HandlerList();
-        Thread a = l.makeParserThread(q1, h);
+      RedirectCollector r = new RedirectCollector(Config.get("redirects.output"), incremental);
+      LinkCollector lc = incremental ? new LinkCollector(Config.get("links.output"), update) : //
+          new LinkCollector(Config.get("links.output"), resume ? Long.parseLong(cp.getResumeData(Checkpoint.LINKS)) : -1);
+      LuceneLinkTokenizer lt = new LuceneLinkTokenizer(Config.get("linktext.output"), Config.get("linktext.counts"), update);
+      lt.setCacheSize(Config.getInt("linktext.cache", 0));
+      if(resume) {
+        System.err.println("Resuming from checkpoint " + gen + ".");
+        r.load(snapshotFile(dir, "redirects", gen));
+        lt.load(snapshotFile(dir, "linktext", gen));
+      }
+      // Optional separate stages for indexing and link collection (a stage that
+      // is switched off is not started by the autotuner either):
+      final int ithreads = Config.getInt("indexer.threads", 0), lthreads = Config.getInt("links.threads", 0);
+      final int imax = tune > 0 && ithreads > 0 ? Math.max(ithreads, Config.getInt("indexer.threads.max", ithreads)) : ithreads;
+      final int lmax = tune > 0 && lthreads > 0 ? Math.max(lthreads, Config.getInt("links.threads.max", lthreads)) : lthreads;
+      final long maxbytes = Config.getInt("loader.queue.megabytes", 256) * (1L << 20);
+      AsyncHandler linkstage = lthreads > 0 ? new AsyncHandler("Link collection", lmax << 3, maxbytes, cp) : null;
+      AsyncHandler indexstage = ithreads > 0 ? new AsyncHandler("Indexing", imax << 3, maxbytes, cp) : null;
+      // Worker pools, with all threads started but only some active:
+      List<Autotuner.Pool> pools = new ArrayList<>();
+      if(linkstage != null)
+        pools.add(linkstage.makePool(lthreads, lmax, null));
+      if(indexstage != null)
+        pools.add(indexstage.makePool(ithreads, imax, linkstage != null ? linkstage.gauge() : null));
+      l.parsers = new Autotuner.Pool("Parsing", 1, parmax, par, q1, //
+          indexstage != null ? indexstage.gauge() : linkstage != null ? linkstage.gauge() : null);
+      pools.add(l.parsers);
+      System.err.println("Starting " + par + " parser, " + ithreads + " indexer and " + lthreads + " link collection threads.");
+      for(int i = 0; i < lmax; i++)
+        threads.add(linkstage.makeWorkerThread(makeLinkHandler(lc, lt), null));
+      for(int i = 0; i < imax; i++) {
+        ArticleCache.Recorder rec = cache.makeRecorder();
+        Handler h2 = linkstage != null ? linkstage.makeThreadHandler(null) : makeLinkHandler(lc, lt);
+        threads.add(indexstage.makeWorkerThread(indexer.makeThreadHandler(h2, rec), rec));
+      }
+      for(int i = 0; i < parmax; i++) {
+        HandlerList h = new HandlerList();
+        ArticleCache.Recorder rec = cache.makeRecorder();
+        Thread a = l.makeParserThread(q1, h, rec);
         h.add(r.makeThreadHandler());
-        h.add(indexer.makeThreadHandler(h2));
-        h2.add(lc.makeThreadHandler());
-        h2.add(lt.makeThreadHandler());
+        if(indexstage != null)
+          h.add(indexstage.makeThreadHandler(rec));
+        else {
+          Handler h2 = linkstage != null ? linkstage.makeThreadHandler(null) : makeLinkHandler(lc, lt);
+          h.add(indexer.makeThreadHandler(h2, rec));
+        }
         threads.add(a);
       }
 
       // Start all:
       for(Thread th : threads)
         th.start();
-      // Wait for all:
+      Autotuner tuner = null;
+      if(parmax > par || imax > ithreads || lmax > lthreads) {
+        tuner = new Autotuner(tune * 1000L, Math.max(cpus, par + ithreads + lthreads));
+        for(Autotuner.Pool p : pools)
+          tuner.add(p);
+        tuner.start();
+      }
+      // Wait for all, taking checkpoints regularly:
+      final long interval = incremental ? 0 : Config.getInt("checkpoint.interval", 0) * 60000L;
       for(Thread th : threads)
         try {
+          while(interval > 0 && th.isAlive()) {
+            th.join(interval);
+            if(th.isAlive() && checkpoint(cp, gen + 1, dir, r, indexer, cache, lc, lt))
+              ++gen;
+          }
           th.join();
         }
         catch(InterruptedException e) {
           e.printStackTrace();
         }
+      if(tuner != null)
+        tuner.interrupt();
+      System.err.println("Article queue: " + q1.statistics());
+      if(indexstage != null)
+        System.err.println(indexstage.statistics());
+      if(linkstage != null)
+        System.err.println(linkstage.statistics());
+      System.err.println(l.slow.report());
       // Close in a controlled order:
       r.close(); // Before lt!
       indexer.close(); // Before lc, lt!
+      cache.close();
       lc.close();
       lt.close();
+      if(update != null)
+        update.writeTouchedPhrases(dir, Config.get("linktext.output"), Config.get("update.phrases"));
+      if(l.failed) { // Keep the last checkpoint, to resume from.
+        System.err.println("Some input was not read completely.");
+        System.exit(1);
+      }
+      // Remove the last checkpoint
+      new File(snapshotFile(dir, "redirects", gen)).delete();
+      new File(snapshotFile(dir, "linktext", gen)).delete();
     }
     catch(IOException e) {
       e.printStackTrace();
       System.exit(1);
     }
   }
+
+  /**
+   * Make the handlers for link collection, for a single thread.
+   *
+   * @param lc Link collector
+   * @param lt Link text collector
+   * @return Handler
+   */
+  private static Handler makeLinkHandler(LinkCollector lc, LuceneLinkTokenizer lt) {
+    HandlerList h = new HandlerList();
+    h.add(lc.makeThreadHandler());
+    h.add(lt.makeThreadHandler());
+    return h;
+  }
+
+  /**
+   * Take a checkpoint: pause processing, and store the state of all outputs.
+   *
+   * @param cp Checkpoint coordination
+   * @param gen Generation of the new checkpoint
+   * @param dir Index directory
+   * @param r Redirect collector
+   * @param indexer Lucene indexer
+   * @param cache Article cache
+   * @param lc Link collector
+   * @param lt Link text collector
+   * @return {@code true} if the checkpoint was taken
+   * @throws IOException on errors
+   * @throws InterruptedException when interrupted
+   */
+  private static boolean checkpoint(Checkpoint cp, int gen, String dir, RedirectCollector r, LuceneWikipediaIndexer indexer, ArticleCache cache, LinkCollector lc, LuceneLinkTokenizer lt) throws IOException, InterruptedException {
+    Map<String, String> data = cp.await();
+    if(data == null)
+      return false; // Already finishing.
+    try {
+      System.err.println("Writing checkpoint " + gen + ".");
+      data.put(Checkpoint.GENERATION, Integer.toString(gen));
+      data.put(Checkpoint.LINKS, Long.toString(lc.checkpoint()));
+      r.checkpoint(snapshotFile(dir, "redirects", gen));
+      lt.writeCounts(snapshotFile(dir, "linktext", gen));
+      cache.commit();
+      // The index commit makes the new checkpoint valid.
+      indexer.commit(data);
+      new File(snapshotFile(dir, "redirects", gen - 1)).delete();
+      new File(snapshotFile(dir, "linktext", gen - 1)).delete();
+    }
+    finally {
+      cp.release();
+    }
+    return true;
+  }
+
+  /**
+   * File name of checkpoint snapshots.
+   *
+   * @param dir Index directory
+   * @param name Snapshot name
+   * @param gen Checkpoint generation
+   * @return File name
+   */
+  private static String snapshotFile(String dir, String name, int gen) {
+    return new File(dir, "checkpoint-" + name + "-" + gen + ".gz").getPath();
+  }
 }
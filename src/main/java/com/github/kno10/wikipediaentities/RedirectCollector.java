@@ -1,6 +1,8 @@
 package com.github.kno10.wikipediaentities;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -24,6 +26,9 @@ public class RedirectCollector {
   /** Has the transitive closure been computed */
   protected boolean closed = false;
 
+  /** Incremental update of the previous output */
+  protected boolean update = false;
+
   /**
    * Constructor.
    *
@@ -33,6 +38,21 @@ public class RedirectCollector {
     this.out = out;
   }
 
+  /**
+   * Constructor.
+   *
+   * @param out Output file name
+   * @param update Incremental update: load the previous output, and apply the
+   *        changes.
+   * @throws IOException When the previous output cannot be read
+   */
+  public RedirectCollector(String out, boolean update) throws IOException {
+    this.out = out;
+    this.update = update;
+    if(update)
+      load(out);
+  }
+
   /** Compute the transitive closure of redirects. */
   public synchronized Map<String, String> transitiveClosure() {
     if(closed)
@@ -72,11 +92,51 @@ public class RedirectCollector {
       writer.close();
   }
 
+  /**
+   * Write the redirects collected so far, for a checkpoint.
+   *
+   * @param fname Snapshot file name
+   * @throws IOException on errors
+   */
+  public void checkpoint(String fname) throws IOException {
+    try (PrintStream writer = Util.openOutput(fname)) {
+      for(Map.Entry<String, String> ent : redirects.entrySet())
+        writer.append(ent.getKey()).append('\t').append(ent.getValue()).append('\n');
+    }
+  }
+
+  /**
+   * Load the redirects of a checkpoint.
+   *
+   * @param fname Snapshot file name
+   * @throws IOException on errors
+   */
+  public void load(String fname) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(Util.openInput(fname), "UTF-8"))) {
+      for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+        String[] parts = line.split("\t", 2);
+        redirects.put(parts[0], parts[1]);
+      }
+    }
+  }
+
   public Handler makeThreadHandler() {
     return new RedirectHandler();
   }
 
   private class RedirectHandler extends AbstractHandler {
+    @Override
+    public void rawArticle(String prefix, String title, String text) {
+      if(update) // No longer a redirect.
+        redirects.remove(prefix + title);
+    }
+
+    @Override
+    public void cachedArticle(String prefix, String title, String[] links, String tokens) {
+      if(update) // No longer a redirect.
+        redirects.remove(prefix + title);
+    }
+
     @Override
     public void redirect(String prefix, String title, String redirect, String anchor) {
       if(redirect == null || redirect.length() == 0)
@@ -0,0 +1,139 @@
+package com.github.kno10.wikipediaentities;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.shingle.ShingleFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.analysis.util.FilteringTokenFilter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import com.github.kno10.wikipediaentities.util.Util;
+
+/**
+ * Vocabulary of token shingles (two or three consecutive tokens) to index, so
+ * that link texts can be found with term lookups instead of phrase queries.
+ *
+ * Phrase queries intersect the positions of every token, which is expensive
+ * for frequent words such as "the" or "of". Indexing all shingles would
+ * multiply the size of the index, so we only index the shingles of known link
+ * texts (e.g. of the previous run). A link text of two or three tokens then
+ * becomes a single term, a longer one a phrase of a few shingles. Any link
+ * text that is not covered by the vocabulary is searched as before.
+ *
+ * The same vocabulary must be used for indexing and for searching.
+ *
+ * @author Erich Schubert
+ */
+public class ShingleVocabulary {
+  /** Lucene field name for the shingles */
+  public static final String LUCENE_FIELD_SHINGLES = "s";
+
+  /** Shingle size */
+  static final int MIN_SIZE = 2, MAX_SIZE = 3;
+
+  /** Shingles to index */
+  private CharArraySet shingles = new CharArraySet(1 << 16, false);
+
+  /**
+   * Constructor.
+   *
+   * @param fname File with link texts, tokenized and separated by spaces,
+   *        optionally followed by a tab and further columns (e.g. the link
+   *        text output or counts of a previous run)
+   * @throws IOException on errors
+   */
+  public ShingleVocabulary(String fname) throws IOException {
+    StringBuilder buf = new StringBuilder();
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(Util.openInput(fname), "UTF-8"))) {
+      for(String line; (line = r.readLine()) != null;) {
+        int p = line.indexOf('\t');
+        String[] tokens = (p >= 0 ? line.substring(0, p) : line).split(" ");
+        // All shingles of the phrase, so that every phrase can be covered:
+        for(int i = 0; i + MIN_SIZE <= tokens.length; i++) {
+          buf.setLength(0);
+          buf.append(tokens[i]);
+          for(int j = 1; j < MAX_SIZE && i + j < tokens.length; j++) {
+            buf.append(' ').append(tokens[i + j]);
+            if(j + 1 >= MIN_SIZE && !shingles.contains(buf))
+              shingles.add(buf.toString());
+          }
+        }
+      }
+    }
+    System.err.format("Read %d shingles from %s.\n", shingles.size(), fname);
+  }
+
+  /**
+   * Make the token stream of the shingles field.
+   *
+   * @param tokens Tokens of the text field (a separate stream over the same
+   *        text)
+   * @return Shingles in the vocabulary
+   */
+  public TokenStream filter(TokenStream tokens) {
+    ShingleFilter sf = new ShingleFilter(tokens, MIN_SIZE, MAX_SIZE);
+    sf.setOutputUnigrams(false);
+    return new FilteringTokenFilter(sf) {
+      /** Shingle */
+      CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+
+      @Override
+      protected boolean accept() {
+        return shingles.contains(termAtt.buffer(), 0, termAtt.length());
+      }
+    };
+  }
+
+  /**
+   * Make a query for a phrase using the shingles.
+   *
+   * @param tokens Tokens of the phrase
+   * @return Query, or {@code null} if the phrase is not covered by the
+   *         vocabulary
+   */
+  public Query query(String[] tokens) {
+    final int n = tokens.length;
+    if(n < MIN_SIZE)
+      return null;
+    if(n <= MAX_SIZE) {
+      String s = join(tokens, 0, n);
+      return shingles.contains(s) ? new TermQuery(new Term(LUCENE_FIELD_SHINGLES, s)) : null;
+    }
+    // Cover the phrase with shingles of maximum size, the last one may overlap.
+    PhraseQuery.Builder pq = new PhraseQuery.Builder();
+    for(int i = 0;; i += MAX_SIZE) {
+      final int start = Math.min(i, n - MAX_SIZE);
+      String s = join(tokens, start, start + MAX_SIZE);
+      if(!shingles.contains(s))
+        return null;
+      pq.add(new Term(LUCENE_FIELD_SHINGLES, s), start);
+      if(start + MAX_SIZE == n)
+        return pq.build();
+    }
+  }
+
+  /**
+   * Join tokens with spaces.
+   *
+   * @param tokens Tokens
+   * @param start First token
+   * @param end End
+   * @return Joined tokens
+   */
+  private static String join(String[] tokens, int start, int end) {
+    StringBuilder buf = new StringBuilder();
+    for(int i = start; i < end; i++) {
+      if(i > start)
+        buf.append(' ');
+      buf.append(tokens[i]);
+    }
+    return buf.toString();
+  }
+}
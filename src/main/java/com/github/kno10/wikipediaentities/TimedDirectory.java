@@ -0,0 +1,152 @@
+package com.github.kno10.wikipediaentities;
+
+import java.io.IOException;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * Directory wrapper that measures how long segments are being written by
+ * flushes and by merges.
+ *
+ * Flushes run in the indexing threads, merges in the background, so neither
+ * shows up clearly in the processing times. We count the bytes written with a
+ * flush or merge context, and the wall time during which at least one such
+ * file is open (the encoding of a segment happens while its files are
+ * written).
+ *
+ * @author Erich Schubert
+ */
+public class TimedDirectory extends FilterDirectory {
+  /** Statistics of flushes and merges */
+  private Stats flushes, merges;
+
+  /**
+   * Constructor.
+   *
+   * @param in Directory
+   * @param flushes Statistics of flushes (can be shared by directories)
+   * @param merges Statistics of merges (can be shared by directories)
+   */
+  public TimedDirectory(Directory in, Stats flushes, Stats merges) {
+    super(in);
+    this.flushes = flushes;
+    this.merges = merges;
+  }
+
+  @Override
+  public IndexOutput createOutput(String name, IOContext context) throws IOException {
+    final Stats s = context.context == IOContext.Context.FLUSH ? flushes : //
+        context.context == IOContext.Context.MERGE ? merges : null;
+    IndexOutput out = in.createOutput(name, context);
+    return s != null ? new TimedOutput(out, s) : out;
+  }
+
+  /**
+   * Statistics of one kind of output.
+   *
+   * @author Erich Schubert
+   */
+  public static class Stats {
+    /** Bytes written */
+    private long bytes;
+
+    /** Time with open files, in ns */
+    private long nanos;
+
+    /** Number of open files */
+    private int open;
+
+    /** Time the first file was opened */
+    private long since;
+
+    /**
+     * A file was opened.
+     */
+    synchronized void open() {
+      if(open++ == 0)
+        since = System.nanoTime();
+    }
+
+    /**
+     * A file was closed.
+     *
+     * @param len Bytes written
+     */
+    synchronized void close(long len) {
+      bytes += len;
+      if(--open == 0)
+        nanos += System.nanoTime() - since;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return String.format("%d MB in %.1f s", bytes >> 20, nanos * 1e-9);
+    }
+  }
+
+  /**
+   * Output wrapper, to notice when the file is closed.
+   *
+   * @author Erich Schubert
+   */
+  private static class TimedOutput extends IndexOutput {
+    /** Wrapped output */
+    private IndexOutput out;
+
+    /** Statistics to update */
+    private Stats stats;
+
+    /** Closed already */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param out Output
+     * @param stats Statistics to update
+     */
+    TimedOutput(IndexOutput out, Stats stats) {
+      super(out.toString());
+      this.out = out;
+      this.stats = stats;
+      stats.open();
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException {
+      out.writeByte(b);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) throws IOException {
+      out.writeBytes(b, offset, length);
+    }
+
+    @Override
+    public long getFilePointer() {
+      return out.getFilePointer();
+    }
+
+    @Override
+    public long getChecksum() throws IOException {
+      return out.getChecksum();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if(closed)
+        return;
+      closed = true;
+      final long len = out.getFilePointer();
+      try {
+        out.close();
+      }
+      finally {
+        stats.close(len);
+      }
+    }
+  }
+}
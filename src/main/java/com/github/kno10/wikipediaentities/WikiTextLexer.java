@@ -0,0 +1,706 @@
+package com.github.kno10.wikipediaentities;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+import com.github.kno10.wikipediaentities.util.CharScanner;
+import com.github.kno10.wikipediaentities.util.CharSlice;
+
+/**
+ * Lexer for the wiki text of an article, to find the links and to get the
+ * plain text for indexing.
+ *
+ * This used to be a chain of regular expressions, each of which made a new
+ * copy of the text, and the templates needed up to four more passes. Now we
+ * copy the text once into a buffer, and edit it in place with a few forward
+ * scans, which skip plain text with a {@link CharScanner}:
+ * <ol>
+ * <li>Remove comments, math, {@code <sub>} and {@code <sup>} tags, and lines
+ * containing only a magic word such as {@code __TOC__}. The positions of all
+ * braces are recorded on the way.</li>
+ * <li>Remove templates. Only the recorded braces are needed to find them, so
+ * the nesting is resolved without looking at the text again.</li>
+ * <li>Replace links with their labels.</li>
+ * <li>Remove references, single-line tables, a leading list marker, and the
+ * remaining (e.g. file and category) links.</li>
+ * </ol>
+ * The result is the same as with the regular expressions, including their
+ * quirks: comments, math and tables are only removed within a single line,
+ * templates nested deeper than four levels keep their outer levels, and a
+ * template containing a single brace is kept. Only the text preceding a file
+ * or category link is no longer duplicated, which was a bug.
+ *
+ * This class is not thread-safe, use one instance per thread. Run
+ * {@link WikiTextLexerCheck} to compare it with the regular expressions after
+ * changes.
+ *
+ * @author Erich Schubert
+ */
+public class WikiTextLexer {
+  /**
+   * Receiver of the links found.
+   *
+   * @author Erich Schubert
+   */
+  public interface Listener {
+    /**
+     * A link was found.
+     *
+     * @param target Normalized link target, only valid during this call
+     * @param label Link label, only valid during this call
+     */
+    void link(CharSequence target, CharSequence label);
+  }
+
+  /** Maximum nesting depth of templates to remove */
+  static final int TEMPLATE_DEPTH = 4;
+
+  /** Characters to stop at, in the scans for markup */
+  static final CharScanner BASICS = new CharScanner("<{}\n\r\u0085\u2028\u2029"), //
+      LINKS = new CharScanner("["), CRUFT = new CharScanner("<{[");
+
+  /** Text buffer */
+  private char[] buf = new char[1 << 12];
+
+  /** Length of the text in the buffer */
+  private int len;
+
+  /** Positions of the braces in the text */
+  private int[] braces = new int[1 << 8];
+
+  /** Number of braces */
+  private int nbraces;
+
+  /** Template removal: last brace of a template starting at each brace */
+  private int[] cut = new int[1 << 8];
+
+  /** Braces not yet removed */
+  private int[] live = new int[1 << 8];
+
+  /** Text following each brace has been removed */
+  private boolean[] gone = new boolean[1 << 8];
+
+  /** Link groups: target and label, the label start is -1 if not given */
+  private int targs, targe, labls, lable;
+
+  /** Normalized link target and label */
+  private char[] target = new char[1 << 8], label = new char[1 << 8];
+
+  /** Views of the link target and label, for the listener */
+  private CharSlice targetView = new CharSlice(), labelView = new CharSlice();
+
+  /** Namespaces of links that are not followed */
+  private static final String[] SKIP_NAMESPACES = { "file", "wikisource", //
+      "category", "kategorie", "catégorie", "categoría", "wikipedia", "commons", //
+      "image", "fichier", "datei", "bild", "archivo", "imagen" };
+
+  /**
+   * Process the wiki text of an article.
+   *
+   * @param text Wiki text
+   * @param listener Listener for links
+   * @return Plain text, valid until the next call
+   */
+  public CharSequence process(String text, Listener listener) {
+    len = text.length();
+    if(buf.length < len)
+      buf = new char[Math.max(len, buf.length << 1)];
+    text.getChars(0, len, buf, 0);
+    stripBasics();
+    stripTemplates();
+    replaceLinks(listener);
+    stripCruft();
+    return CharBuffer.wrap(buf, 0, len);
+  }
+
+  /**
+   * Remove comments, math, sub/sup tags and magic words, and record the
+   * positions of braces.
+   */
+  private void stripBasics() {
+    final int n = len;
+    int w = 0;
+    nbraces = 0;
+    for(int r = 0; r < n;) {
+      if(!isLineStart(r)) { // Skip plain text
+        final int t = BASICS.indexOf(buf, r, n);
+        if(w < r)
+          System.arraycopy(buf, r, buf, w, t - r);
+        w += t - r;
+        if((r = t) == n)
+          break;
+      }
+      final char c = buf[r];
+      int e = -1;
+      if(c == '<')
+        e = matchTag(r, n);
+      else if((c == '_' || isSpace(c)) && isLineStart(r))
+        e = matchMagicWord(r, n);
+      if(e > r) {
+        r = e;
+        continue;
+      }
+      if(c == '{' || c == '}') {
+        if(nbraces == braces.length)
+          braces = Arrays.copyOf(braces, nbraces << 1);
+        braces[nbraces++] = w;
+      }
+      buf[w++] = buf[r++];
+    }
+    len = w;
+  }
+
+  /**
+   * Match a comment, math, or a sub/sup tag.
+   *
+   * @param s Start, at {@code <}
+   * @param n End of text
+   * @return End of match, or -1
+   */
+  private int matchTag(int s, int n) {
+    if(s + 3 < n && buf[s + 1] == '!' && buf[s + 2] == '-' && buf[s + 3] == '-') {
+      for(int i = s + 4; i + 2 < n && !isLineEnd(buf[i]); i++)
+        if(buf[i] == '-' && buf[i + 1] == '-' && buf[i + 2] == '>')
+          return i + 3;
+    }
+    if(matchesIgnoreCase(s, n, "<math>")) {
+      for(int i = s + 6; i < n && !isLineEnd(buf[i]); i++)
+        if(buf[i] == '<' && matchesIgnoreCase(i, n, "</math>"))
+          return i + 7;
+    }
+    int i = s + 1 < n && buf[s + 1] == '/' ? s + 2 : s + 1;
+    if(i + 3 < n && lower(buf[i]) == 's' && lower(buf[i + 1]) == 'u' && (lower(buf[i + 2]) == 'b' || lower(buf[i + 2]) == 'p') && buf[i + 3] == '>')
+      return i + 4;
+    return -1;
+  }
+
+  /**
+   * Match a line that contains only a magic word, such as {@code __TOC__},
+   * including preceding blank lines.
+   *
+   * @param s Start, at the beginning of a line
+   * @param n End of text
+   * @return End of match, or -1
+   */
+  private int matchMagicWord(int s, int n) {
+    final int p = skipSpace(s, n);
+    if(p + 5 > n || buf[p] != '_' || buf[p + 1] != '_')
+      return -1;
+    int e = p + 2;
+    while(e < n && isWord(buf[e]))
+      e++;
+    if(e - p < 5 || buf[e - 1] != '_' || buf[e - 2] != '_')
+      return -1;
+    // The remainder of the line must be blank. Trailing blank lines are
+    // included, except for the last line break before further text.
+    final int u = skipSpace(e, n);
+    if(u == n || isLineEnd(buf[u]) && !isCRLF(u))
+      return u;
+    for(int v = u - 1; v >= e; v--)
+      if(isLineEnd(buf[v]) && !isCRLF(v))
+        return v;
+    return -1;
+  }
+
+  /**
+   * Remove templates, nested up to {@link #TEMPLATE_DEPTH} levels.
+   *
+   * Each level removes the templates that do not contain braces anymore; a
+   * template consists of two adjacent opening braces, and two adjacent closing
+   * braces. Braces become adjacent when the text between them is removed.
+   */
+  private void stripTemplates() {
+    final int nb = nbraces;
+    if(nb < 4)
+      return;
+    if(live.length < nb) {
+      int size = Math.max(nb, live.length << 1);
+      live = new int[size];
+      cut = new int[size];
+      gone = new boolean[size];
+    }
+    int nlive = nb;
+    for(int i = 0; i < nb; i++) {
+      live[i] = i;
+      cut[i] = -1;
+      gone[i] = false;
+    }
+    boolean changed = false;
+    for(int level = 0; level < TEMPLATE_DEPTH; level++) {
+      boolean removed = false;
+      int o = 0;
+      for(int m = 0; m < nlive;) {
+        if(m + 3 < nlive && buf[braces[live[m]]] == '{' && buf[braces[live[m + 1]]] == '{' && adjacent(live[m], live[m + 1]) //
+            && buf[braces[live[m + 2]]] == '}' && buf[braces[live[m + 3]]] == '}' && adjacent(live[m + 2], live[m + 3])) {
+          final int a = live[m], b = live[m + 3];
+          cut[a] = b;
+          for(int i = a; i < b; i++)
+            gone[i] = true;
+          removed = true;
+          m += 4;
+          continue;
+        }
+        live[o++] = live[m++];
+      }
+      nlive = o;
+      if(!removed)
+        break;
+      changed = true;
+    }
+    if(!changed)
+      return;
+    // Compact the text.
+    int w = braces[0], r = w;
+    for(int i = 0; i < nb; i++) {
+      if(cut[i] < 0)
+        continue;
+      final int s = braces[i];
+      System.arraycopy(buf, r, buf, w, s - r);
+      w += s - r;
+      r = braces[cut[i]] + 1;
+      i = cut[i];
+    }
+    System.arraycopy(buf, r, buf, w, len - r);
+    len = w + len - r;
+  }
+
+  /**
+   * Test if two braces are adjacent, after removing templates.
+   *
+   * @param a First brace
+   * @param b Later brace
+   * @return {@code true} when there is no text left between them
+   */
+  private boolean adjacent(int a, int b) {
+    for(int i = a; i < b; i++)
+      if(!gone[i] && braces[i + 1] != braces[i] + 1)
+        return false;
+    return true;
+  }
+
+  /**
+   * Replace links with their labels, and report them to the listener.
+   *
+   * Links to files, categories etc. are kept, and removed later.
+   *
+   * @param listener Listener
+   */
+  private void replaceLinks(Listener listener) {
+    final int n = len;
+    int w = 0, pos = 0;
+    for(int s = 0; (s = LINKS.indexOf(buf, s, n - 1)) < n - 1;) {
+      if(buf[s + 1] != '[') {
+        s++;
+        continue;
+      }
+      final int e = matchLink(s, n);
+      if(e < 0) {
+        s++;
+        continue;
+      }
+      if(targe == targs) { // Internal link.
+        System.arraycopy(buf, pos, buf, w, s - pos);
+        w += s - pos;
+        if(labls < 0) { // Retain an oddity of the regular expressions
+          "null".getChars(0, 4, buf, w);
+          w += 4;
+        }
+        else {
+          System.arraycopy(buf, labls, buf, w, lable - labls);
+          w += lable - labls;
+        }
+        pos = s = e;
+        continue;
+      }
+      // Normalize the target, as Util.normalizeLink:
+      if(target.length < targe - targs)
+        target = new char[Math.max(targe - targs, target.length << 1)];
+      final int tlen = clean(buf, targs, targe, target);
+      if(tlen == 0) {
+        System.err.println(new String(buf, s, e - s));
+        s = e;
+        continue;
+      }
+      if(Character.isLowerCase(target[0]))
+        target[0] = Character.toUpperCase(target[0]);
+      if(target[0] == ':' || skipNamespace(tlen)) {
+        s = e;
+        continue;
+      }
+      char[] lab = target;
+      int llen = tlen;
+      if(labls >= 0) {
+        if(label.length < lable - labls)
+          label = new char[Math.max(lable - labls, label.length << 1)];
+        llen = clean(buf, labls, lable, lab = label);
+      }
+      listener.link(targetView.set(target, 0, tlen), labelView.set(lab, 0, llen));
+
+      System.arraycopy(buf, pos, buf, w, s - pos);
+      w += s - pos;
+      System.arraycopy(lab, 0, buf, w, llen);
+      w += llen;
+      pos = s = e;
+    }
+    System.arraycopy(buf, pos, buf, w, n - pos);
+    len = w + n - pos;
+  }
+
+  /**
+   * Copy a link target or label, replacing newlines and trimming as
+   * {@code text.replace('\n', ' ').trim()}.
+   *
+   * @param src Source
+   * @param start Start
+   * @param end End
+   * @param dst Destination
+   * @return Length
+   */
+  private static int clean(char[] src, int start, int end, char[] dst) {
+    while(start < end && src[start] <= ' ')
+      start++;
+    while(end > start && src[end - 1] <= ' ')
+      end--;
+    for(int i = start; i < end; i++)
+      dst[i - start] = src[i] == '\n' ? ' ' : src[i];
+    return end - start;
+  }
+
+  /**
+   * Test if the normalized link target is in a namespace that is not followed
+   * (files, categories, ...), i.e., if the trimmed text before the first colon
+   * (if any) is one of {@link #SKIP_NAMESPACES}, ignoring case.
+   *
+   * @param tlen Length of the target
+   * @return {@code true} to skip the link
+   */
+  private boolean skipNamespace(int tlen) {
+    int end = 0;
+    while(end < tlen && target[end] != ':')
+      end++;
+    while(end > 0 && target[end - 1] <= ' ')
+      end--;
+    outer: for(String ns : SKIP_NAMESPACES) {
+      if(ns.length() != end)
+        continue;
+      for(int i = 0; i < end; i++) {
+        final char c1 = target[i], c2 = ns.charAt(i);
+        if(c1 != c2 && Character.toUpperCase(c1) != Character.toUpperCase(c2) //
+            && Character.toLowerCase(Character.toUpperCase(c1)) != Character.toLowerCase(Character.toUpperCase(c2)))
+          continue outer;
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Match a link {@code [[target#anchor|options|label]]}, where anchor,
+   * options and label are optional.
+   *
+   * Sets {@link #targs}, {@link #targe}, {@link #labls}, {@link #lable}.
+   *
+   * @param s Start, at {@code [[}
+   * @param n End of text
+   * @return End of match, or -1
+   */
+  private int matchLink(int s, int n) {
+    final int t = skipSpace(s + 2, n);
+    for(int h = t; h < n; h++) {
+      final char c = buf[h];
+      if(c == '[')
+        return -1;
+      if(c != '#' && c != '|' && c != ']')
+        continue;
+      int g = h;
+      while(g > t && isSpace(buf[g - 1]))
+        g--;
+      targs = t;
+      targe = g;
+      if(c == '|')
+        return matchLabel(h, n);
+      if(c == ']') {
+        labls = -1;
+        return h + 1 < n && buf[h + 1] == ']' ? h + 2 : -1;
+      }
+      // Anchor, up to the end of the line. Otherwise, the # is in the target.
+      for(int a = h + 1; a <= n; a++) {
+        int p = skipSpace(a, n);
+        if(p < n && buf[p] == '|') {
+          int e = matchLabel(p, n);
+          if(e >= 0)
+            return e;
+        }
+        else if(p + 1 < n && buf[p] == ']' && buf[p + 1] == ']') {
+          labls = -1;
+          return p + 2;
+        }
+        if(a == n || isLineEnd(buf[a]))
+          break;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Match the label part of a link, {@code |options|label]]} or
+   * {@code |label]]}.
+   *
+   * @param p Position of the pipe
+   * @param n End of text
+   * @return End of match, or -1
+   */
+  private int matchLabel(int p, int n) {
+    int x = p + 1;
+    while(x < n && !isLinkSpecial(buf[x]))
+      x++;
+    if(x < n && buf[x] == '|') {
+      int e = matchLabelText(x + 1, n);
+      if(e >= 0)
+        return e;
+    }
+    return matchLabelText(p + 1, n);
+  }
+
+  /**
+   * Match the label text, {@code label]]}.
+   *
+   * @param q Start of label
+   * @param n End of text
+   * @return End of match, or -1
+   */
+  private int matchLabelText(int q, int n) {
+    int r = skipSpace(q, n), e = r;
+    while(e < n && !isLinkSpecial(buf[e]))
+      e++;
+    if(e == r) { // Label is blank, but not empty.
+      if(r == q)
+        return -1;
+      r--;
+    }
+    if(e + 1 < n && buf[e] == ']' && buf[e + 1] == ']') {
+      labls = r;
+      lable = e;
+      return e + 2;
+    }
+    return -1;
+  }
+
+  /**
+   * Remove references, tables, list markers and the remaining links.
+   */
+  private void stripCruft() {
+    final int n = len;
+    int w = 0;
+    for(int r = 0; r < n;) {
+      if(r > 0) { // Skip plain text
+        final int t = CRUFT.indexOf(buf, r, n);
+        if(w < r)
+          System.arraycopy(buf, r, buf, w, t - r);
+        w += t - r;
+        if((r = t) == n)
+          break;
+      }
+      final char c = buf[r];
+      int e = -1;
+      if(c == '<')
+        e = matchRef(r, n);
+      else if(c == '{')
+        e = matchTable(r, n);
+      else if(c == '[')
+        e = matchBrackets(r, n);
+      else if(r == 0 && (c == ' ' || c == '*'))
+        e = matchListMarker(n);
+      if(e > r) {
+        r = e;
+        continue;
+      }
+      buf[w++] = buf[r++];
+    }
+    len = w;
+  }
+
+  /**
+   * Match a reference: {@code <ref>...</ref>}, or {@code <ref name=...>}
+   * up to the last {@code >} before the next tag.
+   *
+   * @param s Start, at {@code <}
+   * @param n End of text
+   * @return End of match, or -1
+   */
+  private int matchRef(int s, int n) {
+    if(!matchesIgnoreCase(s, n, "<ref"))
+      return -1;
+    int k = s + 4;
+    while(k < n && buf[k] != '<')
+      k++;
+    if(matchesIgnoreCase(k, n, "</ref>"))
+      return k + 6;
+    if(s + 4 < n && isSpace(buf[s + 4])) {
+      int i = skipSpace(s + 4, n);
+      if(matchesIgnoreCase(i, n, "name")) {
+        i = skipSpace(i + 4, n);
+        if(i < n && buf[i] == '=') {
+          for(int j = k - 1; j > i; j--)
+            if(buf[j] == '>')
+              return j + 1;
+        }
+      }
+    }
+    for(int j = k - 3; j >= s + 4; j--)
+      if(buf[j] == '/' && buf[j + 1] == '>' && buf[j + 2] == '>')
+        return j + 3;
+    return -1;
+  }
+
+  /**
+   * Match a table within a single line.
+   *
+   * @param s Start, at <code>{</code>
+   * @param n End of text
+   * @return End of match, or -1
+   */
+  private int matchTable(int s, int n) {
+    if(s + 1 >= n || buf[s + 1] != '|')
+      return -1;
+    for(int i = s + 2; i + 1 < n && !isLineEnd(buf[i]); i++)
+      if(buf[i] == '|' && buf[i + 1] == '}')
+        return i + 2;
+    return -1;
+  }
+
+  /**
+   * Match a link without nested brackets.
+   *
+   * @param s Start, at {@code [}
+   * @param n End of text
+   * @return End of match, or -1
+   */
+  private int matchBrackets(int s, int n) {
+    if(s + 1 >= n || buf[s + 1] != '[')
+      return -1;
+    int i = s + 2;
+    while(i < n && buf[i] != '[' && buf[i] != ']')
+      i++;
+    return i + 1 < n && buf[i] == ']' && buf[i + 1] == ']' ? i + 2 : -1;
+  }
+
+  /**
+   * Match a list marker at the beginning of the text.
+   *
+   * @param n End of text
+   * @return End of match, or -1
+   */
+  private int matchListMarker(int n) {
+    int i = 0;
+    while(i < n && buf[i] == ' ')
+      i++;
+    if(i == n || buf[i] != '*')
+      return -1;
+    while(i < n && buf[i] == '*')
+      i++;
+    return i;
+  }
+
+  /**
+   * Test for an ASCII string, ignoring case.
+   *
+   * @param s Start
+   * @param n End of text
+   * @param str String, lower case
+   * @return {@code true} on a match
+   */
+  private boolean matchesIgnoreCase(int s, int n, String str) {
+    final int l = str.length();
+    if(s + l > n)
+      return false;
+    for(int i = 0; i < l; i++)
+      if(lower(buf[s + i]) != str.charAt(i))
+        return false;
+    return true;
+  }
+
+  /**
+   * Skip whitespace.
+   *
+   * @param i Start
+   * @param n End of text
+   * @return First non-whitespace position, or n
+   */
+  private int skipSpace(int i, int n) {
+    while(i < n && isSpace(buf[i]))
+      i++;
+    return i;
+  }
+
+  /**
+   * Test for the beginning of a line, not at the end of the text.
+   *
+   * @param i Position
+   * @return {@code true} at the beginning of a line
+   */
+  private boolean isLineStart(int i) {
+    return i == 0 || isLineEnd(buf[i - 1]) && !isCRLF(i);
+  }
+
+  /**
+   * Test for the line feed of a CR LF pair, which is part of a single line
+   * break.
+   *
+   * @param i Position
+   * @return {@code true} at the LF of a CR LF pair
+   */
+  private boolean isCRLF(int i) {
+    return buf[i] == '\n' && i > 0 && buf[i - 1] == '\r';
+  }
+
+  /**
+   * Lower case of ASCII letters.
+   *
+   * @param c Character
+   * @return Lower case character
+   */
+  private static char lower(char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  /**
+   * Whitespace, as in regular expressions.
+   *
+   * @param c Character
+   * @return {@code true} for whitespace
+   */
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Line terminators, as in regular expressions.
+   *
+   * @param c Character
+   * @return {@code true} for line terminators
+   */
+  private static boolean isLineEnd(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  /**
+   * Word characters, as in regular expressions.
+   *
+   * @param c Character
+   * @return {@code true} for word characters
+   */
+  private static boolean isWord(char c) {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+  }
+
+  /**
+   * Characters ending the parts of a link.
+   *
+   * @param c Character
+   * @return {@code true} for brackets, pipe and hash.
+   */
+  private static boolean isLinkSpecial(char c) {
+    return c == ']' || c == '[' || c == '#' || c == '|';
+  }
+}
@@ -0,0 +1,206 @@
+package com.github.kno10.wikipediaentities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.kno10.wikipediaentities.util.Util;
+
+/**
+ * Compare the {@link WikiTextLexer} with the regular expressions it replaced,
+ * on a small corpus, a text file (optional) and random fragments of wiki text.
+ *
+ * Run this after changing the lexer: the text, the links and the error output
+ * must be the same.
+ *
+ * @author Erich Schubert
+ */
+public class WikiTextLexerCheck {
+  /**
+   * The regular expressions previously used, as reference for the lexer (with
+   * the duplication bug fixed).
+   *
+   * @author Erich Schubert
+   */
+  private static class Reference {
+    /** Patterns to strip from the wiki text */
+    private Matcher stripBasics = Pattern.compile("(<!--.*?-->|<math>(.*?)</math>|</?su[bp]>|^\\s*__\\w+__\\s*$)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE).matcher("");
+
+    /** Pattern to strip all templates, as we cannot reasonably parse them */
+    private Matcher stripTemplates = Pattern.compile("\\{\\{([^}{]*?)\\}\\}").matcher("");
+
+    /** Match links, which are not nested. */
+    private Matcher linkMatcher = Pattern.compile("\\[\\[\\s*([^\\]\\[\\|]*?)(?:\\s*#.*?)?(?:\\s*\\|(?:[^\\]\\[\\#\\|]*\\|)?\\s*([^\\]\\[\\#\\|]+))?\\s*\\]\\]").matcher("");
+
+    /** More cruft to remove */
+    private Matcher stripCruft = Pattern.compile("(?:<ref(?:[^<]*</ref|\\s+name\\s*=\\s*[^<]*|[^<]*/>)>|\\{\\|(.*?)\\|\\}|^ *\\*+|\\[\\[(?:([^\\]\\[]*)\\s*\\|\\s*)?([^\\]\\[]*)\\]\\])", Pattern.CASE_INSENSITIVE).matcher("");
+
+    /**
+     * Process the wiki text of an article.
+     *
+     * @param intext Wiki text
+     * @param links Output: links (target, tab, label)
+     * @param errors Output: error messages, one per line
+     * @return Plain text
+     */
+    String process(String intext, List<String> links, StringBuilder errors) {
+      CharSequence text = intext;
+      stripBasics.reset(text);
+      text = stripBasics.replaceAll("");
+      for(int i = 0; i < 4; i++) {
+        stripTemplates.reset(text);
+        String text2 = stripTemplates.replaceAll("");
+        if(text2.equals(text))
+          break; // No more changes
+        text = text2;
+      }
+      StringBuilder buf = new StringBuilder();
+      int pos = 0;
+      linkMatcher.reset(text);
+      while(linkMatcher.find()) {
+        buf.append(text, pos, linkMatcher.start());
+        pos = linkMatcher.end();
+        String targ = linkMatcher.group(1);
+        if(targ == null || targ.length() == 0) {
+          buf.append(linkMatcher.group(2));
+          continue; // Internal link.
+        }
+        targ = Util.normalizeLink(targ);
+        if(targ == null || targ.length() == 0) {
+          errors.append(linkMatcher.group(0)).append('\n');
+          buf.append(linkMatcher.group(0));
+          continue;
+        }
+        final String[] spl = targ.split(":");
+        String targl = spl.length > 0 ? spl[0].trim() : targ;
+        if(targ.charAt(0) == ':' || isSkipped(targl)) {
+          buf.append(linkMatcher.group(0)); // Removed with the cruft.
+          continue;
+        }
+        String labl = linkMatcher.group(2);
+        if(labl == null)
+          labl = targ;
+        labl = labl.replace('\n', ' ').trim();
+        links.add(targ + "\t" + labl);
+        buf.append(labl);
+      }
+      buf.append(text, pos, text.length());
+      stripCruft.reset(buf);
+      return stripCruft.replaceAll("");
+    }
+
+    /** Namespaces of links that are not followed */
+    private static final String[] SKIP_NAMESPACES = { "file", "wikisource", //
+        "category", "kategorie", "catégorie", "categoría", "wikipedia", "commons", //
+        "image", "fichier", "datei", "bild", "archivo", "imagen" };
+
+    /**
+     * Test for namespaces of links that are not followed.
+     *
+     * @param ns Namespace
+     * @return {@code true} if skipped
+     */
+    private static boolean isSkipped(String ns) {
+      for(String s : SKIP_NAMESPACES)
+        if(s.equalsIgnoreCase(ns))
+          return true;
+      return false;
+    }
+  }
+
+  /** Wiki text fragments, for random test inputs */
+  private static final String[] FRAGMENTS = { "[[", "]]", "[", "]", "|", "#", //
+      "{{", "}}", "{", "}", "{|", "|}", "<!--", "-->", "<math>", "</MATH>", //
+      "</math>", "<sub>", "</SUP>", "<su", "<ref", "<REF name = x>", "</ref>", //
+      "</ref", "/>", "/>>", ">", "<", "\n", "\n", " ", " ", "  ", "\t", //
+      "__TOC__", "__", "_", "a", "Foo", "b c", "File:", "Category:", ":", "*", //
+      "**", "x", "y", "\u2028", "\r", "&", "name", "=", "Ab#c", " | ", //
+      "Image:x", "\u00e9" };
+
+  /** Small corpus of typical wiki text */
+  private static final String[] CORPUS = { //
+      "'''Berlin''' is the [[capital city|capital]] of [[Germany]].<ref>{{cite web|url=x}}</ref>", //
+      "{{Infobox city\n| name = Berlin\n| image = [[File:Berlin.jpg|thumb|The [[Reichstag]]]]\n}}\nText", //
+      "__NOTOC__\n* [[List item]] <!-- hidden [[Link]] -->\n** [[Foo#Bar|baz]] and [[#Anchor|here]]", //
+      "{| class=\"wikitable\" |}\n[[Category:Cities]] [[de:Berlin]] [[:Category:Capitals]]", //
+      "E = mc<sup>2</sup>, <math>\\sqrt{x}</math> and H<sub>2</sub>O {{a|{{b|{{c|{{d|{{e}}}}}}}}}}", //
+      "<ref name=\"a\">[[Source]]</ref> <ref name=b /> [[Multi\nline|label\ntext]] [[ Spaced | label ]]" };
+
+  /**
+   * Run the comparison.
+   *
+   * @param args Number of random inputs (optional), random seed (optional),
+   *        wiki text file (optional)
+   * @throws IOException on read errors
+   */
+  public static void main(String[] args) throws IOException {
+    final int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    Random rnd = new Random(args.length > 1 ? Long.parseLong(args[1]) : 0L);
+    List<String> inputs = new ArrayList<>(Arrays.asList(CORPUS));
+    if(args.length > 2)
+      inputs.add(new String(Files.readAllBytes(Paths.get(args[2])), StandardCharsets.UTF_8));
+    WikiTextLexer lexer = new WikiTextLexer();
+    Reference reference = new Reference();
+    final List<String> links = new ArrayList<>(), expectLinks = new ArrayList<>();
+    StringBuilder expectErrors = new StringBuilder(), buf = new StringBuilder();
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    PrintStream err = System.err, capture = new PrintStream(errors, true, "UTF-8");
+    WikiTextLexer.Listener listener = new WikiTextLexer.Listener() {
+      @Override
+      public void link(CharSequence target, CharSequence label) {
+        links.add(target + "\t" + label);
+      }
+    };
+    int bad = 0;
+    for(int i = 0; i < inputs.size() + n; i++) {
+      String in;
+      if(i < inputs.size())
+        in = inputs.get(i);
+      else {
+        buf.setLength(0);
+        for(int j = 1 + rnd.nextInt(rnd.nextBoolean() ? 8 : 40); j > 0; j--)
+          buf.append(FRAGMENTS[rnd.nextInt(FRAGMENTS.length)]);
+        in = buf.toString();
+      }
+      expectLinks.clear();
+      expectErrors.setLength(0);
+      String expect = reference.process(in, expectLinks, expectErrors), text;
+      links.clear();
+      errors.reset();
+      System.setErr(capture); // Invalid links are reported on stderr
+      try {
+        text = lexer.process(in, listener).toString();
+      }
+      finally {
+        System.setErr(err);
+      }
+      if(!expect.equals(text) || !expectLinks.equals(links) || !expectErrors.toString().equals(errors.toString("UTF-8"))) {
+        if(++bad <= 5)
+          System.out.format("Input:    %s\nExpected: %s %s\nLexer:    %s %s\n", escape(in), //
+              escape(expect), escape(expectLinks.toString()), escape(text), escape(links.toString()));
+      }
+    }
+    System.out.format("%d of %d inputs differ.\n", bad, inputs.size() + n);
+    if(bad > 0)
+      throw new IllegalStateException("Results differ.");
+  }
+
+  /**
+   * Make line breaks and tabs visible.
+   *
+   * @param s String
+   * @return Escaped string
+   */
+  private static String escape(String s) {
+    return s.replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t").replace("\u2028", "\\u2028");
+  }
+}
@@ -0,0 +1,237 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adjust the number of active workers of several pools at runtime.
+ *
+ * All workers of a pool are started up front, but only the first
+ * {@link Pool#getActive()} take new work; the others are parked in
+ * {@link Pool#await(int)}. This way we never need to create or close the
+ * per-thread handlers while processing.
+ *
+ * Every few seconds, we look at how full the input queue of each pool was on
+ * average, and how much of the time its active workers were busy:
+ * <ul>
+ * <li>a pool with a backlog in its input and busy workers gets one more
+ * worker, unless its output queue is backed up, or the total number of active
+ * workers is at the limit;</li>
+ * <li>a pool whose load would also fit on one worker fewer, without exceeding
+ * the busy threshold, or whose output is backed up, loses one worker.</li>
+ * </ul>
+ * Every decision is logged.
+ *
+ * @author Erich Schubert
+ */
+public class Autotuner extends Thread {
+  /** Thresholds for decisions */
+  static final double BACKLOG = .5, BUSY = .8;
+
+  /** Sampling interval of the queues, in ms */
+  static final long SAMPLE = 250;
+
+  /** Pools */
+  private List<Pool> pools = new ArrayList<>();
+
+  /** Decision interval, in ms */
+  private long interval;
+
+  /** Limit for the total number of active workers */
+  private int limit;
+
+  /**
+   * Constructor.
+   *
+   * @param interval Decision interval, in ms
+   * @param limit Limit for the total number of active workers (the minimum
+   *        of each pool is always allowed)
+   */
+  public Autotuner(long interval, int limit) {
+    super("Autotuner");
+    setDaemon(true);
+    this.interval = interval;
+    this.limit = limit;
+  }
+
+  /**
+   * Add a pool to tune.
+   *
+   * @param pool Pool
+   */
+  public void add(Pool pool) {
+    pools.add(pool);
+  }
+
+  @Override
+  public void run() {
+    final int samples = (int) Math.max(1, interval / SAMPLE);
+    try {
+      while(true) {
+        long start = System.nanoTime();
+        for(Pool p : pools)
+          p.startInterval();
+        double[] input = new double[pools.size()], output = new double[pools.size()];
+        for(int s = 0; s < samples; s++) {
+          Thread.sleep(SAMPLE);
+          for(int i = 0; i < pools.size(); i++) {
+            Pool p = pools.get(i);
+            input[i] += p.input != null ? p.input.get() : 0.;
+            output[i] += p.output != null ? p.output.get() : 0.;
+          }
+        }
+        final long elapsed = System.nanoTime() - start;
+        int total = 0;
+        for(Pool p : pools)
+          total += p.getActive();
+        for(int i = 0; i < pools.size(); i++) {
+          Pool p = pools.get(i);
+          if(p.finished)
+            continue;
+          final int active = p.getActive();
+          final double in = input[i] / samples, out = output[i] / samples;
+          final double busy = p.busy.get() / (double) (elapsed * active);
+          if(in > BACKLOG && busy > BUSY && out <= BACKLOG && active < p.max && total < limit) {
+            p.setActive(active + 1);
+            ++total;
+            System.err.format("Autotuner: %s %d -> %d threads (input %.0f%% full, %.0f%% busy).\n", p.name, active, active + 1, in * 100, busy * 100);
+          }
+          else if(active > p.min && (busy * active / (active - 1) < BUSY || out > BACKLOG)) {
+            p.setActive(active - 1);
+            --total;
+            System.err.format("Autotuner: %s %d -> %d threads (input %.0f%% full, output %.0f%% full, %.0f%% busy).\n", p.name, active, active - 1, in * 100, out * 100, busy * 100);
+          }
+        }
+      }
+    }
+    catch(InterruptedException e) {
+      // Shut down.
+    }
+  }
+
+  /**
+   * Gauge for the fill level of a queue.
+   *
+   * @author Erich Schubert
+   */
+  public interface Gauge {
+    /**
+     * Get the current value.
+     *
+     * @return Fill level, in [0:1]
+     */
+    double get();
+  }
+
+  /**
+   * A pool of workers with an adjustable number of active workers.
+   *
+   * @author Erich Schubert
+   */
+  public static class Pool {
+    /** Pool name, for logging */
+    String name;
+
+    /** Bounds */
+    int min, max;
+
+    /** Number of active workers */
+    private volatile int active;
+
+    /** Finished, all workers may proceed */
+    private volatile boolean finished = false;
+
+    /** Busy time in the current interval, in ns */
+    AtomicLong busy = new AtomicLong();
+
+    /** Fill level of the input and output queues, may be {@code null} */
+    Gauge input, output;
+
+    /**
+     * Constructor.
+     *
+     * @param name Pool name, for logging
+     * @param min Minimum number of active workers
+     * @param max Maximum number of workers
+     * @param initial Initial number of active workers
+     * @param input Fill level of the input queue, may be {@code null}
+     * @param output Fill level of the output queue, may be {@code null}
+     */
+    public Pool(String name, int min, int max, int initial, Gauge input, Gauge output) {
+      this.name = name;
+      this.min = Math.max(1, Math.min(min, max));
+      this.max = max;
+      this.active = Math.max(this.min, Math.min(initial, max));
+      this.input = input;
+      this.output = output;
+    }
+
+    /**
+     * Get the number of workers to start.
+     *
+     * @return Maximum number of workers
+     */
+    public int getMax() {
+      return max;
+    }
+
+    /**
+     * Get the number of active workers.
+     *
+     * @return Number of active workers
+     */
+    public int getActive() {
+      return active;
+    }
+
+    /**
+     * Change the number of active workers.
+     *
+     * @param n New number of active workers
+     */
+    synchronized void setActive(int n) {
+      active = n;
+      notifyAll();
+    }
+
+    /**
+     * Worker: wait until this worker is active, before taking new work.
+     *
+     * @param i Worker number
+     * @throws InterruptedException When interrupted
+     */
+    public void await(int i) throws InterruptedException {
+      if(i < active || finished)
+        return;
+      synchronized(this) {
+        while(i >= active && !finished)
+          wait();
+      }
+    }
+
+    /**
+     * Worker: account busy time.
+     *
+     * @param nanos Busy time, in ns
+     */
+    public void busy(long nanos) {
+      busy.addAndGet(nanos);
+    }
+
+    /**
+     * Start a new measurement interval.
+     */
+    void startInterval() {
+      busy.set(0);
+    }
+
+    /**
+     * The input is exhausted: release all parked workers, so they can finish.
+     */
+    public synchronized void finish() {
+      finished = true;
+      notifyAll();
+    }
+  }
+}
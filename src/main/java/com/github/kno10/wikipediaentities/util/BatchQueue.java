@@ -0,0 +1,349 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue to hand off items in batches, from multiple producers to
+ * multiple consumers.
+ *
+ * Each producer thread collects items in its own {@link Producer} buffer, and
+ * only full batches are passed through a ring buffer. This needs one lock
+ * round-trip per batch rather than per item. Producers must be registered
+ * before any consumer starts; once the last producer is closed and the ring is
+ * empty, {@link #take()} returns {@code null} to signal the end of the stream,
+ * so consumers neither need to poll nor to share a counter of active
+ * producers.
+ *
+ * Because items can vary in size by several orders of magnitude, the queue can
+ * also be bounded by the total size of the items in flight, from
+ * {@link Producer#put} until the consumer {@link #release}s the batch. A
+ * producer that would exceed this budget first hands off its own batch, then
+ * waits. A single item larger than the budget is admitted when nothing else is
+ * in flight.
+ *
+ * @author Erich Schubert
+ *
+ * @param <T> Item type
+ */
+public class BatchQueue<T> implements Autotuner.Gauge {
+  /** Ring buffer of batches */
+  private final Batch<T>[] ring;
+
+  /** Position of the first batch, and number of batches in the ring */
+  private int head = 0, count = 0;
+
+  /** Number of open producers */
+  private int producers = 0;
+
+  /** Batch size */
+  private final int batchsize;
+
+  /** Maximum size of the items in flight, and of a single batch */
+  private final long maxbytes, batchbytes;
+
+  /** Size of the items in flight, and the maximum observed */
+  private long inflight = 0, peak = 0;
+
+  /** Statistics: number and duration (ns) of producer and consumer waits */
+  private long blocked = 0, blockedtime = 0, waiting = 0, waitingtime = 0;
+
+  /** Lock */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /** Conditions for waiting consumers and producers */
+  private final Condition notEmpty = lock.newCondition(),
+      notFull = lock.newCondition();
+
+  /**
+   * Constructor.
+   *
+   * @param capacity Maximum number of batches in the queue
+   * @param batchsize Number of items per batch
+   */
+  public BatchQueue(int capacity, int batchsize) {
+    this(capacity, batchsize, Long.MAX_VALUE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity Maximum number of batches in the queue
+   * @param batchsize Maximum number of items per batch
+   * @param maxbytes Maximum size of the items in flight
+   */
+  public BatchQueue(int capacity, int batchsize, long maxbytes) {
+    @SuppressWarnings("unchecked")
+    Batch<T>[] ring = (Batch<T>[]) new Batch<?>[capacity];
+    this.ring = ring;
+    this.batchsize = batchsize;
+    this.maxbytes = maxbytes;
+    this.batchbytes = Math.max(1, maxbytes / (capacity + 1));
+  }
+
+  /**
+   * Register a new producer. Must be called before the last other producer is
+   * closed, or consumers may see the end of the stream early.
+   *
+   * @return Producer, to be used by a single thread.
+   */
+  public Producer producer() {
+    lock.lock();
+    try {
+      ++producers;
+    }
+    finally {
+      lock.unlock();
+    }
+    return new Producer();
+  }
+
+  /**
+   * Take the next batch, waiting if necessary.
+   *
+   * The consumer must {@link #release} the batch after processing.
+   *
+   * @return Batch, or {@code null} when all producers have been closed.
+   * @throws InterruptedException When interrupted
+   */
+  public Batch<T> take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      if(count == 0 && producers > 0) {
+        final long start = System.nanoTime();
+        while(count == 0 && producers > 0)
+          notEmpty.await();
+        ++waiting;
+        waitingtime += System.nanoTime() - start;
+      }
+      if(count == 0)
+        return null;
+      Batch<T> batch = ring[head];
+      ring[head] = null;
+      head = (head + 1) % ring.length;
+      --count;
+      notFull.signalAll();
+      return batch;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Release the items of a batch after processing, so that producers can
+   * continue.
+   *
+   * @param batch Batch
+   */
+  public void release(Batch<T> batch) {
+    lock.lock();
+    try {
+      inflight -= batch.bytes;
+      notFull.signalAll();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Admit an item to the queue, waiting until the budget permits.
+   *
+   * @param size Item size
+   * @param producer Producer, to hand off its batch before waiting
+   * @throws InterruptedException When interrupted
+   */
+  private void admit(long size, Producer producer) throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      if(inflight > 0 && inflight + size > maxbytes) {
+        lock.unlock();
+        try {
+          producer.flush();
+        }
+        finally {
+          lock.lock();
+        }
+        if(inflight > 0 && inflight + size > maxbytes) {
+          final long start = System.nanoTime();
+          while(inflight > 0 && inflight + size > maxbytes)
+            notFull.await();
+          ++blocked;
+          blockedtime += System.nanoTime() - start;
+        }
+      }
+      inflight += size;
+      peak = Math.max(peak, inflight);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Add a batch, waiting for space if necessary.
+   *
+   * @param batch Batch
+   * @throws InterruptedException When interrupted
+   */
+  private void put(Batch<T> batch) throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      if(count == ring.length) {
+        final long start = System.nanoTime();
+        while(count == ring.length)
+          notFull.await();
+        ++blocked;
+        blockedtime += System.nanoTime() - start;
+      }
+      ring[(head + count) % ring.length] = batch;
+      ++count;
+      notEmpty.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Unregister a producer, and wake up all consumers at the end of the stream.
+   */
+  private void unregister() {
+    lock.lock();
+    try {
+      if(--producers == 0)
+        notEmpty.signalAll();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the fill level of the queue.
+   *
+   * @return Fraction of the batch capacity in use
+   */
+  @Override
+  public double get() {
+    lock.lock();
+    try {
+      return count / (double) ring.length;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the queue statistics.
+   *
+   * @return Statistics, for logging.
+   */
+  public String statistics() {
+    lock.lock();
+    try {
+      return String.format("Producers blocked %d times for %.1f s, consumers waited %d times for %.1f s, peak %d MB in flight.", //
+          blocked, blockedtime * 1e-9, waiting, waitingtime * 1e-9, peak >> 20);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * A batch of items, with their total size.
+   *
+   * @author Erich Schubert
+   *
+   * @param <T> Item type
+   */
+  public static class Batch<T> extends ArrayList<T> {
+    /** Serial version number */
+    private static final long serialVersionUID = 1L;
+
+    /** Total size of the items */
+    long bytes = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Initial capacity
+     */
+    Batch(int capacity) {
+      super(capacity);
+    }
+  }
+
+  /**
+   * Buffer of a single producer thread.
+   *
+   * @author Erich Schubert
+   */
+  public class Producer {
+    /** Current batch */
+    private Batch<T> buf = new Batch<>(batchsize);
+
+    /** Closed flag */
+    private boolean closed = false;
+
+    /**
+     * Add an item, handing off the batch when full.
+     *
+     * @param item Item
+     * @throws InterruptedException When interrupted
+     */
+    public void put(T item) throws InterruptedException {
+      put(item, 0);
+    }
+
+    /**
+     * Add an item, waiting if the size budget is exhausted, and handing off
+     * the batch when full.
+     *
+     * @param item Item
+     * @param size Item size
+     * @throws InterruptedException When interrupted
+     */
+    public void put(T item, long size) throws InterruptedException {
+      if(size > 0)
+        admit(size, this);
+      buf.add(item);
+      buf.bytes += size;
+      if(buf.size() >= batchsize || buf.bytes >= batchbytes)
+        flush();
+    }
+
+    /**
+     * Hand off the current batch, even when not full.
+     *
+     * @throws InterruptedException When interrupted
+     */
+    public void flush() throws InterruptedException {
+      if(buf.isEmpty())
+        return;
+      BatchQueue.this.put(buf);
+      buf = new Batch<>(batchsize);
+    }
+
+    /**
+     * Hand off the remaining items, and close this producer.
+     *
+     * @throws InterruptedException When interrupted; the producer is closed
+     *         anyway.
+     */
+    public void close() throws InterruptedException {
+      if(closed)
+        return;
+      closed = true;
+      try {
+        flush();
+      }
+      finally {
+        unregister();
+      }
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.github.kno10.wikipediaentities.util;
+
+/**
+ * Character sequence that stops being readable after a time budget, to abort
+ * regular expressions that backtrack excessively on a pathological article.
+ *
+ * A {@link java.util.regex.Matcher} cannot be interrupted, but it reads the
+ * text only through {@link #charAt}. Every few thousand characters read, we
+ * check the clock, and throw {@link Expired} once the deadline has passed.
+ *
+ * This class is not thread-safe, reuse one instance per thread.
+ *
+ * @author Erich Schubert
+ */
+public class BudgetCharSequence implements CharSequence {
+  /** Number of characters read between looking at the clock */
+  static final int CHECK_INTERVAL = 1 << 12;
+
+  /** Text */
+  private CharSequence text;
+
+  /** Deadline, in ns */
+  private long deadline;
+
+  /** Characters to read before the next check */
+  private int countdown;
+
+  /**
+   * Start reading a new text.
+   *
+   * @param text Text
+   * @param budget Time budget in ns, 0 for no limit
+   * @return {@code this}
+   */
+  public BudgetCharSequence reset(CharSequence text, long budget) {
+    this.text = text;
+    this.deadline = budget > 0 ? System.nanoTime() + budget : Long.MAX_VALUE;
+    this.countdown = CHECK_INTERVAL;
+    return this;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if(--countdown == 0) {
+      countdown = CHECK_INTERVAL;
+      if(deadline != Long.MAX_VALUE && System.nanoTime() > deadline)
+        throw new Expired();
+    }
+    return text.charAt(index);
+  }
+
+  @Override
+  public int length() {
+    return text.length();
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return text.subSequence(start, end);
+  }
+
+  @Override
+  public String toString() {
+    return text.toString();
+  }
+
+  /**
+   * Thrown when the time budget has been exceeded.
+   *
+   * @author Erich Schubert
+   */
+  public static class Expired extends RuntimeException {
+    /** Serialization version */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     */
+    public Expired() {
+      // Thrown for control flow, so skip the stack trace.
+      super("Time budget exceeded.", null, false, false);
+    }
+  }
+}
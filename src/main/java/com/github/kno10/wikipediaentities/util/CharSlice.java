@@ -0,0 +1,71 @@
+package com.github.kno10.wikipediaentities.util;
+
+/**
+ * A reusable view of a range of a character array, to pass text to a callback
+ * without copying it into a new {@link String}.
+ *
+ * The view is only valid until it is set to another range, usually until the
+ * callback returns. Use {@link #toString()} to keep a copy.
+ *
+ * @author Erich Schubert
+ */
+public class CharSlice implements CharSequence {
+  /** Character array */
+  private char[] buf;
+
+  /** Range in the array */
+  private int start, end;
+
+  /**
+   * View a range of an array.
+   *
+   * @param buf Character array
+   * @param start Start
+   * @param end End (exclusive)
+   * @return {@code this}
+   */
+  public CharSlice set(char[] buf, int start, int end) {
+    this.buf = buf;
+    this.start = start;
+    this.end = end;
+    return this;
+  }
+
+  /**
+   * Get the underlying array.
+   *
+   * @return Character array
+   */
+  public char[] array() {
+    return buf;
+  }
+
+  /**
+   * Get the start of the view in the array.
+   *
+   * @return Offset
+   */
+  public int offset() {
+    return start;
+  }
+
+  @Override
+  public int length() {
+    return end - start;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return buf[start + index];
+  }
+
+  @Override
+  public CharSequence subSequence(int s, int e) {
+    return new String(buf, start + s, e - s);
+  }
+
+  @Override
+  public String toString() {
+    return new String(buf, start, end - start);
+  }
+}
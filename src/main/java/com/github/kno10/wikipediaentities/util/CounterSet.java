@@ -5,12 +5,17 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
-import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
 
 /**
  * Count Objects.
  *
+ * Each counter holds two counts: the search count in the lower 32 bits, and
+ * the exact count in the upper 32 bits.
+ *
  * @author Erich Schubert
  */
 public class CounterSet {
@@ -19,12 +24,30 @@ public class CounterSet {
    *
    * @return List of items.
    */
-  public static <O> List<Entry<O>> descending(Object2IntOpenHashMap<O> counters) {
+  public static <O> List<Entry<O>> descending(Object2LongOpenHashMap<O> counters) {
+    ArrayList<Entry<O>> copy = new ArrayList<>(counters.size());
+    for(Iterator<Object2LongMap.Entry<O>> iter = counters.object2LongEntrySet().fastIterator(); iter.hasNext();) {
+      // Note: fast iterator will recycle this object!
+      Object2LongMap.Entry<O> entry = iter.next();
+      copy.add(new Entry<O>(entry.getKey(), entry.getLongValue()));
+    }
+    Collections.sort(copy);
+    return copy;
+  }
+
+  /**
+   * Get a descending list of counted items, numbered by int.
+   *
+   * @param counters Counters
+   * @param names Names of the items, by number
+   * @return List of items.
+   */
+  public static <O> List<Entry<O>> descending(Int2LongOpenHashMap counters, O[] names) {
     ArrayList<Entry<O>> copy = new ArrayList<>(counters.size());
-    for(Iterator<Object2IntMap.Entry<O>> iter = counters.object2IntEntrySet().fastIterator(); iter.hasNext();) {
+    for(Iterator<Int2LongMap.Entry> iter = counters.int2LongEntrySet().fastIterator(); iter.hasNext();) {
       // Note: fast iterator will recycle this object!
-      Object2IntMap.Entry<O> entry = iter.next();
-      copy.add(new Entry<O>(entry.getKey(), entry.getIntValue()));
+      Int2LongMap.Entry entry = iter.next();
+      copy.add(new Entry<O>(names[entry.getIntKey()], entry.getLongValue()));
     }
     Collections.sort(copy);
     return copy;
@@ -42,7 +65,7 @@ public class CounterSet {
     private O key;
 
     /** Data value */
-    private int count;
+    private long count;
 
     /**
      * Constructor.
@@ -50,7 +73,7 @@ public class CounterSet {
      * @param key Key
      * @param count Count
      */
-    private Entry(O key, int count) {
+    private Entry(O key, long count) {
       super();
       this.key = key;
       this.count = count;
@@ -61,15 +84,15 @@ public class CounterSet {
     }
 
     public int getSearchCount() {
-      return count & 0xFFFF;
+      return (int) count;
     }
 
     public int getExactCount() {
-      return count >>> 16;
+      return (int) (count >>> 32);
     }
 
-    public int getCombinedCount() {
-      return (count & 0xFFFF) + (count >>> 16);
+    public long getCombinedCount() {
+      return (count & 0xFFFF_FFFFL) + (count >>> 32);
     }
 
     @Override
@@ -134,10 +157,10 @@ public class CounterSet {
    *
    * @param other Other set of counters.
    */
-  public static <O> void update(Object2IntOpenHashMap<O> first, Object2IntOpenHashMap<O> second) {
-    for(Iterator<Object2IntMap.Entry<O>> iter = second.object2IntEntrySet().fastIterator(); iter.hasNext();) {
-      Object2IntMap.Entry<O> entry = iter.next();
-      second.addTo(entry.getKey(), entry.getIntValue());
+  public static <O> void update(Object2LongOpenHashMap<O> first, Object2LongOpenHashMap<O> second) {
+    for(Iterator<Object2LongMap.Entry<O>> iter = second.object2LongEntrySet().fastIterator(); iter.hasNext();) {
+      Object2LongMap.Entry<O> entry = iter.next();
+      first.addTo(entry.getKey(), entry.getLongValue());
     }
   }
 }
@@ -0,0 +1,335 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Replace HTML entities and special characters, with the same rules as
+ * {@link Util#removeEntities} and {@link Util#removeSpecial}, but compiled
+ * into flat arrays.
+ *
+ * The {@link PrefixTreeMatcher} is convenient to build, but it is called for
+ * every character of the text, and follows one object (with a binary search)
+ * per character matched. Almost no character starts a match, so we skip to the
+ * next character that starts a pattern with a {@link CharScanner}, and only
+ * then walk the trie, which is stored as arrays of edges per state. Entities and special
+ * characters are replaced in a single pass, in place in a reusable buffer
+ * (replacements are never longer than the text they replace). The special
+ * characters are also replaced when produced by an entity, as if the two were
+ * applied one after the other.
+ *
+ * This class is not thread-safe, use one instance per thread. See
+ * {@link EntityDecoderBenchmark} for a comparison with the prefix trees.
+ *
+ * @author Erich Schubert
+ */
+public class EntityDecoder {
+  /** Compiled matchers */
+  static final Table ENTITIES = new Table(Util.MATCHER), SPECIAL = new Table(Util.SMATCHER);
+
+  /** Characters starting an entity or a special character */
+  static final CharScanner TRIGGERS = new CharScanner(ENTITIES.start.getChars() + SPECIAL.start.getChars());
+
+  /** Text buffer */
+  private char[] buf = new char[1 << 12];
+
+  /** Output position in the buffer */
+  private int w;
+
+  /** Replace special characters, too */
+  private boolean special;
+
+  /** The text was changed */
+  private boolean changed;
+
+  /** Characters of an incomplete match of a special character */
+  private char[] pending = new char[16];
+
+  /** Number of pending characters */
+  private int npending;
+
+  /** Decoded numerical entity */
+  private char[] numeric = new char[2];
+
+  /** Length of the decoded numerical entity */
+  private int nnumeric;
+
+  /**
+   * Replace HTML entities, as {@link Util#removeEntities}.
+   *
+   * @param text Text
+   * @return Text with entities replaced
+   */
+  public String decode(String text) {
+    return text == null ? null : process(text, false);
+  }
+
+  /**
+   * Replace HTML entities and special characters, as
+   * {@link Util#removeEntities} followed by {@link Util#removeSpecial}.
+   *
+   * @param text Text
+   * @return Text with entities and special characters replaced
+   */
+  public String decodeAndNormalize(String text) {
+    return text == null ? null : process(text, true);
+  }
+
+  /**
+   * Process a text.
+   *
+   * @param text Text
+   * @param special Replace special characters, too
+   * @return Processed text
+   */
+  private String process(String text, boolean special) {
+    final int n = text.length();
+    if(buf.length < n)
+      buf = new char[Math.max(n, buf.length << 1)];
+    text.getChars(0, n, buf, 0);
+    final CharScanner trig = special ? TRIGGERS : ENTITIES.start;
+    final char[] buf = this.buf;
+    this.special = special;
+    w = 0;
+    npending = 0;
+    changed = false;
+    for(int r = 0; r < n;) {
+      if(npending == 0) { // Skip plain text
+        final int t = trig.indexOf(buf, r, n);
+        if(w < r)
+          System.arraycopy(buf, r, buf, w, t - r);
+        w += t - r;
+        if((r = t) == n)
+          break;
+      }
+      final char c = buf[r];
+      final int consumed = ENTITIES.starts(c) ? matchEntity(r, n) : 0;
+      if(consumed == 0) {
+        emit(c);
+        r++;
+        continue;
+      }
+      r += consumed;
+      changed = true;
+    }
+    if(npending > 0)
+      flush(true);
+    return changed ? new String(buf, 0, w) : text;
+  }
+
+  /**
+   * Match an entity, and emit its replacement.
+   *
+   * @param pos Position
+   * @param end End of text
+   * @return Number of characters consumed, 0 if no match
+   */
+  private int matchEntity(int pos, int end) {
+    final Table t = ENTITIES;
+    int s = 0, best = 0;
+    char[] rep = null;
+    for(int i = pos;;) {
+      if(t.numeric[s]) {
+        int consumed = matchNumeric(i, end, i - pos);
+        if(consumed > 0) {
+          for(int j = 0; j < nnumeric; j++)
+            emit(numeric[j]);
+          return consumed;
+        }
+        break;
+      }
+      if(i == end || (s = t.child(s, buf[i++])) < 0)
+        break;
+      if(t.rep[s] != null) {
+        best = i - pos;
+        rep = t.rep[s];
+      }
+    }
+    if(rep != null)
+      for(char c : rep)
+        emit(c);
+    return best;
+  }
+
+  /**
+   * Match a numerical entity, after {@code &#}.
+   *
+   * Overflows are handled as in
+   * {@link PrefixTreeMatcher.NumericalEntityMatcher}.
+   *
+   * @param start Position after {@code &#}
+   * @param end End of text
+   * @param depth Length of the prefix
+   * @return Number of characters consumed (including the prefix), or 0
+   */
+  private int matchNumeric(int start, int end, int depth) {
+    if(start == end)
+      return 0;
+    int pos = start, v = 0;
+    if(buf[pos] == 'x' || buf[pos] == 'X') {
+      start = ++pos;
+      ++depth;
+      for(; pos < end; pos++) {
+        final char c = buf[pos];
+        if(c >= '0' && c <= '9')
+          v = v * 16 + (c - '0');
+        else if(c >= 'a' && c <= 'f')
+          v = v * 16 + (c - 'a' + 10);
+        else if(c >= 'A' && c <= 'F')
+          v = v * 16 + (c - 'A' + 10);
+        else
+          break;
+      }
+    }
+    else {
+      for(; pos < end; pos++) {
+        final char c = buf[pos];
+        if(c < '0' || c > '9')
+          break;
+        v = v * 10 + (c - '0');
+      }
+    }
+    if(pos == start)
+      return 0;
+    // Consume a final semicolon, too.
+    if(pos < end && buf[pos] == ';')
+      ++pos;
+    if(v < 0 || v > Character.MAX_CODE_POINT)
+      return 0;
+    nnumeric = Character.toChars(v, numeric, 0);
+    return depth + (pos - start);
+  }
+
+  /**
+   * Emit a character, replacing special characters if enabled.
+   *
+   * @param c Character
+   */
+  private void emit(char c) {
+    if(!special || npending == 0 && !SPECIAL.starts(c)) {
+      buf[w++] = c;
+      return;
+    }
+    if(npending == pending.length)
+      pending = Arrays.copyOf(pending, npending << 1);
+    pending[npending++] = c;
+    flush(false);
+  }
+
+  /**
+   * Replace the pending special characters, unless a longer match is possible.
+   *
+   * @param end At the end of the text, no more characters follow
+   */
+  private void flush(boolean end) {
+    final Table t = SPECIAL;
+    while(npending > 0) {
+      int s = 0, best = 0;
+      char[] rep = null;
+      for(int i = 0; i < npending && s >= 0; i++) {
+        if((s = t.child(s, pending[i])) >= 0 && t.rep[s] != null) {
+          best = i + 1;
+          rep = t.rep[s];
+        }
+      }
+      if(s >= 0 && !end && t.first[s] < t.first[s + 1])
+        return; // A longer match is possible.
+      if(rep != null) {
+        for(char c : rep)
+          buf[w++] = c;
+        changed = true;
+      }
+      else
+        buf[w++] = pending[best++];
+      System.arraycopy(pending, best, pending, 0, npending - best);
+      npending -= best;
+    }
+  }
+
+  /**
+   * A {@link PrefixTreeMatcher}, flattened into arrays.
+   *
+   * @author Erich Schubert
+   */
+  static class Table {
+    /** Characters that start a pattern */
+    final CharScanner start;
+
+    /** The edges of state s are first[s] to first[s+1] */
+    final int[] first;
+
+    /** Edge labels (sorted for each state) */
+    final char[] label;
+
+    /** Edge targets */
+    final int[] target;
+
+    /** Replacement of each state, may be {@code null} */
+    final char[][] rep;
+
+    /** States matching numerical entities */
+    final boolean[] numeric;
+
+    /**
+     * Constructor.
+     *
+     * @param tree Prefix tree to compile
+     */
+    Table(PrefixTreeMatcher tree) {
+      // Number the states in breadth-first order
+      ArrayList<PrefixTreeMatcher> nodes = new ArrayList<>();
+      nodes.add(tree);
+      for(int i = 0; i < nodes.size(); i++) {
+        PrefixTreeMatcher node = nodes.get(i);
+        for(int j = 0; j < node.size; j++)
+          nodes.add(node.t[j]);
+      }
+      final int ns = nodes.size();
+      first = new int[ns + 1];
+      label = new char[ns - 1];
+      target = new int[ns - 1];
+      rep = new char[ns][];
+      numeric = new boolean[ns];
+      final int[] depth = new int[ns];
+      for(int i = 0, e = 0; i < ns; i++) {
+        PrefixTreeMatcher node = nodes.get(i);
+        first[i] = e;
+        for(int j = 0; j < node.size; j++, e++) {
+          label[e] = node.m[j];
+          target[e] = e + 1; // Breadth-first order
+          depth[e + 1] = depth[i] + 1;
+        }
+        numeric[i] = node instanceof PrefixTreeMatcher.NumericalEntityMatcher;
+        if(node.rep != null) {
+          rep[i] = node.rep.toString().toCharArray();
+          if(rep[i].length > depth[i] || i == 0)
+            throw new IllegalArgumentException("Replacements must not be longer than the pattern.");
+        }
+        first[i + 1] = e;
+      }
+      start = new CharScanner(new String(label, first[0], first[1] - first[0]));
+    }
+
+    /**
+     * Test if a character starts a pattern.
+     *
+     * @param c Character
+     * @return {@code true} if a match may start with c
+     */
+    boolean starts(char c) {
+      return start.matches(c);
+    }
+
+    /**
+     * Follow an edge.
+     *
+     * @param s State
+     * @param c Character
+     * @return Next state, or -1
+     */
+    int child(int s, char c) {
+      int e = Arrays.binarySearch(label, first[s], first[s + 1], c);
+      return e >= 0 ? target[e] : -1;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Compare the results and the performance of the {@link EntityDecoder} with
+ * the {@link PrefixTreeMatcher}s of {@link Util}.
+ *
+ * @author Erich Schubert
+ */
+public class EntityDecoderBenchmark {
+  /**
+   * Run the benchmark.
+   *
+   * @param args Text file (optional), number of rounds (optional)
+   * @throws IOException on read errors
+   */
+  public static void main(String[] args) throws IOException {
+    String text;
+    if(args.length > 0)
+      text = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+    else {
+      StringBuilder buf = new StringBuilder();
+      for(int i = 0; i < 100000; i++)
+        buf.append("Lorem ipsum dolor sit amet, &lt;b&gt;consectetur&lt;/b&gt; adipiscing elit\t&ndash; caf&eacute; &#8217;s &#x2014;\r\n");
+      text = buf.toString();
+    }
+    final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    EntityDecoder decoder = new EntityDecoder();
+    String expect = Util.removeSpecial(Util.removeEntities(text));
+    if(!expect.equals(decoder.decodeAndNormalize(text)) || !Util.removeEntities(text).equals(decoder.decode(text)))
+      throw new IllegalStateException("Results differ.");
+    for(int r = 0; r < 2 * rounds; r++) {
+      final boolean measure = r >= rounds; // Warm up first
+      long start = System.nanoTime();
+      int h = Util.removeSpecial(Util.removeEntities(text)).length();
+      long mid = System.nanoTime();
+      h += decoder.decodeAndNormalize(text).length();
+      long end = System.nanoTime();
+      if(measure)
+        System.out.format("PrefixTreeMatcher: %.1f M chars/s, EntityDecoder: %.1f M chars/s (%d)\n", //
+            text.length() * 1e3 / (mid - start), text.length() * 1e3 / (end - mid), h);
+    }
+  }
+}
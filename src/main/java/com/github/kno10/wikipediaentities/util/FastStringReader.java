@@ -2,9 +2,12 @@ package com.github.kno10.wikipediaentities.util;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.CharBuffer;
 
 /**
- * Fast implementation of the {@link Reader} API for Strings.
+ * Fast implementation of the {@link Reader} API for Strings, for the
+ * character buffers of {@link com.github.kno10.wikipediaentities.WikiTextLexer},
+ * and for {@link CharSlice} views.
  *
  * Avoids locking.
  *
@@ -37,15 +40,22 @@ public class FastStringReader extends Reader {
       return -1;
     if(text instanceof String) {
       ((String) text).getChars(p, p + c, cbuf, off);
-      p += c; // Position
-      r -= c; // Remaining
+    }
+    else if(text instanceof CharSlice) {
+      CharSlice b = (CharSlice) text;
+      System.arraycopy(b.array(), b.offset() + p, cbuf, off, c);
+    }
+    else if(text instanceof CharBuffer && ((CharBuffer) text).hasArray()) {
+      CharBuffer b = (CharBuffer) text;
+      System.arraycopy(b.array(), b.arrayOffset() + b.position() + p, cbuf, off, c);
     }
     else {
-      r -= c;
-      while(c-- > 0) {
-        cbuf[off++] = text.charAt(p++);
+      for(int i = 0; i < c; i++) {
+        cbuf[off + i] = text.charAt(p + i);
       }
     }
+    p += c; // Position
+    r -= c; // Remaining
     return c;
   }
 
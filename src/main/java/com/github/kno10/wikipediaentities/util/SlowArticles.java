@@ -0,0 +1,125 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep track of the articles that took longest to process, and in which stage.
+ *
+ * A few pathological pages can stall a thread for seconds, and this tail
+ * latency makes the load of the workers uneven. Every thread reports the time
+ * of each processing stage of each article; we keep only the slowest few in a
+ * heap. Most calls return after comparing with the current threshold, without
+ * synchronization.
+ *
+ * @author Erich Schubert
+ */
+public class SlowArticles {
+  /** Number of articles to keep */
+  private final int size;
+
+  /** Slowest articles, the fastest of these first */
+  private final PriorityQueue<Entry> heap;
+
+  /** Time needed to enter the heap, in ns */
+  private volatile long threshold;
+
+  /** Number of aborted matches */
+  private final AtomicLong aborted = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param size Number of articles to report, may be 0
+   */
+  public SlowArticles(int size) {
+    this.size = size;
+    this.heap = new PriorityQueue<>(Math.max(1, size + 1));
+    this.threshold = size > 0 ? 0 : Long.MAX_VALUE;
+  }
+
+  /**
+   * Record the processing time of an article.
+   *
+   * @param prefix Language prefix
+   * @param title Article title
+   * @param stage Processing stage
+   * @param nanos Time, in ns
+   */
+  public void record(String prefix, String title, String stage, long nanos) {
+    if(nanos <= threshold)
+      return;
+    synchronized(this) {
+      if(nanos <= threshold)
+        return;
+      heap.add(new Entry(prefix + title, stage, nanos));
+      if(heap.size() > size)
+        heap.poll();
+      if(heap.size() == size)
+        threshold = heap.peek().nanos;
+    }
+  }
+
+  /**
+   * Record that processing an article exceeded the time budget.
+   *
+   * @param prefix Language prefix
+   * @param title Article title
+   * @param stage Processing stage
+   */
+  public void aborted(String prefix, String title, String stage) {
+    aborted.incrementAndGet();
+    System.err.println("Time budget exceeded in " + stage + " of " + prefix + title + ", using a simpler cleanup.");
+  }
+
+  /**
+   * Report the slowest articles.
+   *
+   * @return Report
+   */
+  public synchronized String report() {
+    ArrayList<Entry> entries = new ArrayList<>(heap);
+    Collections.sort(entries, Collections.reverseOrder());
+    StringBuilder buf = new StringBuilder();
+    buf.append("Slowest articles (").append(aborted.get()).append(" over the time budget):");
+    for(Entry e : entries)
+      buf.append(String.format("\n%10.1f ms %-10s %s", e.nanos * 1e-6, e.stage, e.title));
+    return buf.toString();
+  }
+
+  /**
+   * Entry of the report.
+   *
+   * @author Erich Schubert
+   */
+  private static class Entry implements Comparable<Entry> {
+    /** Title, with prefix */
+    String title;
+
+    /** Processing stage */
+    String stage;
+
+    /** Time, in ns */
+    long nanos;
+
+    /**
+     * Constructor.
+     *
+     * @param title Title, with prefix
+     * @param stage Processing stage
+     * @param nanos Time, in ns
+     */
+    Entry(String title, String stage, long nanos) {
+      this.title = title;
+      this.stage = stage;
+      this.nanos = nanos;
+    }
+
+    @Override
+    public int compareTo(Entry o) {
+      return Long.compare(nanos, o.nanos);
+    }
+  }
+}
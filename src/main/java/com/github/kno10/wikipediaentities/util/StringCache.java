@@ -0,0 +1,120 @@
+package com.github.kno10.wikipediaentities.util;
+
+import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenCustomHashMap;
+
+/**
+ * Bounded cache for the results of an expensive function on short texts, such
+ * as the normalization of link labels.
+ *
+ * Keys are compared by their contents, so a reusable {@link CharSlice} can be
+ * used for lookups, and is only copied into a string when inserted. When the
+ * cache is full, the least recently used entry is evicted.
+ *
+ * This class is not thread-safe, use one instance per thread.
+ *
+ * @author Erich Schubert
+ */
+public class StringCache {
+  /** Hashing by the contents of a character sequence */
+  private static final Hash.Strategy<CharSequence> CONTENTS = new Hash.Strategy<CharSequence>() {
+    @Override
+    public int hashCode(CharSequence s) {
+      if(s instanceof String)
+        return s.hashCode(); // Cached, and computed the same way.
+      int h = 0;
+      for(int i = 0, l = s.length(); i < l; i++)
+        h = 31 * h + s.charAt(i);
+      return h;
+    }
+
+    @Override
+    public boolean equals(CharSequence a, CharSequence b) {
+      if(a == b)
+        return true;
+      if(a == null || b == null || a.length() != b.length())
+        return false;
+      for(int i = 0, l = a.length(); i < l; i++)
+        if(a.charAt(i) != b.charAt(i))
+          return false;
+      return true;
+    }
+  };
+
+  /** Cached values, in the order of their last use */
+  private Object2ObjectLinkedOpenCustomHashMap<CharSequence, String> map;
+
+  /** Maximum number of entries */
+  private int capacity;
+
+  /** Statistics */
+  private long hits, misses, evictions;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity Maximum number of entries, 0 to disable
+   */
+  public StringCache(int capacity) {
+    this.capacity = capacity;
+    this.map = new Object2ObjectLinkedOpenCustomHashMap<>(Math.min(capacity, 1 << 10), CONTENTS);
+  }
+
+  /**
+   * Get a cached value.
+   *
+   * @param key Key, which may be a reused view
+   * @return Value, or {@code null} if not cached
+   */
+  public String get(CharSequence key) {
+    String v = map.getAndMoveToLast(key);
+    if(v != null)
+      ++hits;
+    else
+      ++misses;
+    return v;
+  }
+
+  /**
+   * Store a value, after {@link #get} returned {@code null}.
+   *
+   * @param key Key, will be copied
+   * @param value Value, not {@code null}
+   */
+  public void put(CharSequence key, String value) {
+    if(capacity <= 0)
+      return;
+    if(map.size() >= capacity) {
+      map.removeFirst();
+      ++evictions;
+    }
+    map.put(key.toString(), value);
+  }
+
+  /**
+   * Number of successful lookups.
+   *
+   * @return Hits
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * Number of failed lookups.
+   *
+   * @return Misses
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Number of entries evicted.
+   *
+   * @return Evictions
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+}
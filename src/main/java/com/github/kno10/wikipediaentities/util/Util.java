@@ -44,6 +44,9 @@ public class Util {
 
   protected static PrefixTreeMatcher MATCHER, SMATCHER;
 
+  /** Characters that may start a match */
+  private static CharScanner MATCHER_START, SMATCHER_START;
+
   // Build the prefix tree
   static {
     MATCHER = PrefixTreeMatcher.makeNumericalEntityMatcher();
@@ -62,6 +65,9 @@ public class Util {
     SMATCHER.add("\t", " ");
     SMATCHER.add("\r\n", "\n");
     SMATCHER.add("\r", "\n");
+
+    MATCHER_START = new CharScanner(new String(MATCHER.m, 0, MATCHER.size));
+    SMATCHER_START = new CharScanner(new String(SMATCHER.m, 0, SMATCHER.size));
   }
 
   /**
@@ -82,6 +88,10 @@ public class Util {
       StringBuilder buf = new StringBuilder(text.length());
       final int end = text.length();
       for(int s = 0; s >= 0 && s < end;) {
+        final int t = MATCHER_START.indexOf(text, s, end);
+        buf.append(text, s, t); // Plain text
+        if((s = t) == end)
+          break;
         int c = MATCHER.match(text, s, end, buf);
         if(c > 0)
           s += c;
@@ -103,6 +113,10 @@ public class Util {
       StringBuilder buf = new StringBuilder(text.length());
       final int end = text.length();
       for(int s = 0; s >= 0 && s < end;) {
+        final int t = SMATCHER_START.indexOf(text, s, end);
+        buf.append(text, s, t); // Plain text
+        if((s = t) == end)
+          break;
         int c = SMATCHER.match(text, s, end, buf);
         if(c > 0)
           s += c;
@@ -125,15 +139,33 @@ public class Util {
    * @throws FileNotFoundException When the file does not exist
    */
   public static InputStream openInput(String fname) throws FileNotFoundException {
-    InputStream fin = new FileInputStream(fname);
+    // Note: format detection reads ahead, so we must keep the buffered stream.
+    InputStream fin = new BufferedInputStream(new FileInputStream(fname));
     try {
-      return new CompressorStreamFactory(true).createCompressorInputStream(new BufferedInputStream(fin));
+      return new CompressorStreamFactory(true).createCompressorInputStream(fin);
     }
     catch(CompressorException e) {
       return fin;
     }
   }
 
+  /**
+   * Open a file, choosing a decompressor if necessary.
+   *
+   * Multistream bzip2 files (as recognized by their file name) will be
+   * decompressed in parallel, if more than one thread is allowed.
+   *
+   * @param fname Filename to open
+   * @param threads Number of decompression threads
+   * @return Input stream
+   * @throws FileNotFoundException When the file does not exist
+   */
+  public static InputStream openInput(String fname, int threads) throws FileNotFoundException {
+    if(threads > 1 && fname.endsWith(".bz2") && fname.contains("multistream"))
+      return new MultiStreamBZip2InputStream(new FileInputStream(fname), threads);
+    return openInput(fname);
+  }
+
   /**
    * Normalize a Wikipedia link.
    *